@@ -0,0 +1,95 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.benchmarks;
+
+import hudson.plugins.labmanager.LabManagerMachineInfo;
+import hudson.plugins.labmanager.LabManagerMachineListReader;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.axiom.om.util.StAXUtils;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.impl.builder.StAXSOAPModelBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.labmanager.LabManager_x0020_SOAP_x0020_interfaceStub.ListMachinesResponse;
+
+/**
+ * Reading a ListMachines answer of 10 to 10,000 machines.
+ *
+ * "fromOM" is what the stub does with an answer: build the Axiom envelope
+ * from the bytes and hand the body to the generated parser.
+ * "factoryParse" is the generated parser on its own, reading the payload
+ * straight from StAX.  "machineListReader" is the lightweight client's
+ * reader over the same envelope, for comparison.
+ */
+@State(Scope.Thread)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DeserializationBenchmark {
+    @Param({ "10", "100", "1000", "10000" })
+    public int machines;
+
+    private StubAccess stub;
+    private byte[] envelope;
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws Exception {
+        stub = new StubAccess();
+        envelope = ResponseDocuments.listMachinesEnvelope(machines);
+        payload = ResponseDocuments.listMachinesPayload(machines);
+    }
+
+    @Benchmark
+    public Object fromOM() throws Exception {
+        XMLStreamReader reader = StAXUtils.createXMLStreamReader(new ByteArrayInputStream(envelope));
+        SOAPEnvelope env = new StAXSOAPModelBuilder(reader, null).getSOAPEnvelope();
+        return stub.fromOM(env.getBody().getFirstElement(), ListMachinesResponse.class);
+    }
+
+    @Benchmark
+    public ListMachinesResponse factoryParse() throws Exception {
+        XMLStreamReader reader = StAXUtils.createXMLStreamReader(new ByteArrayInputStream(payload));
+        try {
+            return ListMachinesResponse.Factory.parse(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Benchmark
+    public List<LabManagerMachineInfo> machineListReader() throws Exception {
+        XMLStreamReader reader = StAXUtils.createXMLStreamReader(new ByteArrayInputStream(envelope));
+        try {
+            return LabManagerMachineListReader.readAll(reader);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.benchmarks;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler and sums them up.
+ *
+ * <pre>
+ * java -jar benchmarks.jar            the marshalling benchmarks
+ * java -jar benchmarks.jar startup    the cold-start benchmark
+ * java -jar benchmarks.jar stubs      getting a stub per call, fresh or cached
+ * java -jar benchmarks.jar REGEX      the benchmarks matching REGEX
+ * java -jar benchmarks.jar -h         JMH's own options, for anything else
+ * </pre>
+ */
+public final class LabManagerBenchmarks {
+    private static final String MARSHALLING = SerializationBenchmark.class.getSimpleName() + "|"
+            + DeserializationBenchmark.class.getSimpleName();
+
+    private LabManagerBenchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].startsWith("-")) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        if (args.length > 0 && "startup".equals(args[0])) {
+            /* Single shots, as the annotations say; the summary shows ms. */
+            print(new Runner(new OptionsBuilder()
+                    .include(StartupBenchmark.class.getSimpleName())
+                    .addProfiler(GCProfiler.class)
+                    .build()).run(), "ms");
+            return;
+        }
+        String include = args.length > 0 ? args[0] : MARSHALLING;
+        if ("stubs".equals(include))
+            include = StubSetupBenchmark.class.getSimpleName();
+        Collection<RunResult> results = new Runner(new OptionsBuilder()
+                .include(include)
+                .exclude(StartupBenchmark.class.getSimpleName())
+                .mode(Mode.AverageTime)
+                .timeUnit(TimeUnit.NANOSECONDS)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+        print(results, "ns");
+    }
+
+    /**
+     * Print one line per benchmark: its parameters, ops/s, time per op and
+     * bytes allocated per op.
+     */
+    private static void print(Collection<RunResult> results, String unit) {
+        System.out.println();
+        System.out.println(String.format("%-60s %14s %14s %14s", "benchmark", "ops/s", unit + "/op", "B/op"));
+        for (RunResult r : results) {
+            String name = r.getParams().getBenchmark();
+            name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+            for (String key : r.getParams().getParamsKeys())
+                name += " " + key + "=" + r.getParams().getParam(key);
+            double perOp = r.getPrimaryResult().getScore();
+            double perSecond = perOp <= 0 ? 0 : ("ms".equals(unit) ? 1e3 : 1e9) / perOp;
+            double bytes = Double.NaN;
+            for (Map.Entry<String, Result> e : r.getSecondaryResults().entrySet()) {
+                if (e.getKey().endsWith("gc.alloc.rate.norm"))
+                    bytes = e.getValue().getScore();
+            }
+            System.out.println(String.format("%-60s %14.1f %14.1f %14.0f", name, perSecond, perOp, bytes));
+        }
+    }
+}
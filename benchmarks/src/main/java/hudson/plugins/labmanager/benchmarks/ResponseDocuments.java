@@ -0,0 +1,83 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.benchmarks;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * ListMachines answers of a given size, as Lab Manager writes them.
+ */
+final class ResponseDocuments {
+    private ResponseDocuments() {
+    }
+
+    /**
+     * @return The whole SOAP 1.2 envelope.
+     */
+    static byte[] listMachinesEnvelope(int machines) {
+        return utf8("<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+                + "<soap:Envelope xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+                + " xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<soap:Body>" + listMachinesResponse(machines) + "</soap:Body></soap:Envelope>");
+    }
+
+    /**
+     * @return Only the ListMachinesResponse element, for parsers that
+     * start from the body's content.
+     */
+    static byte[] listMachinesPayload(int machines) {
+        return utf8("<?xml version=\"1.0\" encoding=\"utf-8\"?>" + listMachinesResponse(machines));
+    }
+
+    private static String listMachinesResponse(int machines) {
+        StringBuilder sb = new StringBuilder(600 * machines + 200);
+        sb.append("<ListMachinesResponse xmlns=\"http://vmware.com/labmanager\"><ListMachinesResult>");
+        for (int i = 1; i <= machines; i++) {
+            int id = 5000 + i;
+            sb.append("<Machine>");
+            element(sb, "id", String.valueOf(id));
+            element(sb, "name", "vm" + i);
+            element(sb, "description", "Build slave " + i);
+            element(sb, "internalIP", "10.0." + (i / 250 % 250) + '.' + (i % 250 + 1));
+            element(sb, "externalIP", "172.16." + (i / 250 % 250) + '.' + (i % 250 + 1));
+            element(sb, "macAddress", String.format("00:50:56:%02x:%02x:%02x", (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff));
+            element(sb, "memory", "2048");
+            element(sb, "status", String.valueOf(i % 3 + 1));
+            element(sb, "isDeployed", "true");
+            element(sb, "configID", "1001");
+            element(sb, "DatastoreNameResidesOn", "datastore1");
+            element(sb, "HostNameDeployedOn", "esx" + (i % 8 + 1) + ".example.com");
+            element(sb, "OwnerFullName", "Jenkins");
+            sb.append("</Machine>");
+        }
+        sb.append("</ListMachinesResult></ListMachinesResponse>");
+        return sb.toString();
+    }
+
+    private static void element(StringBuilder sb, String name, String value) {
+        sb.append('<').append(name).append('>').append(value).append("</").append(name).append('>');
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.benchmarks;
+
+import hudson.plugins.labmanager.LabManagerEnvelopeTemplate;
+import hudson.plugins.labmanager.LabManagerStubFactory;
+
+import java.io.ByteArrayOutputStream;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.labmanager.LabManager_x0020_SOAP_x0020_interfaceStub.AuthenticationHeaderE;
+import com.vmware.labmanager.LabManager_x0020_SOAP_x0020_interfaceStub.ListMachines;
+import com.vmware.labmanager.LabManager_x0020_SOAP_x0020_interfaceStub.MachinePerformAction;
+
+/**
+ * Building the MachinePerformAction and ListMachines requests.
+ *
+ * The stub's toEnvelope only wraps the bean in a lazy element; the XML is
+ * written when the transport serializes the envelope.  So each request is
+ * timed both ways: "Envelope" is toEnvelope and the header alone, "Bytes"
+ * carries on to the bytes that go on the wire.  "Template" is the
+ * lightweight client's way of writing the same request, for comparison.
+ */
+@State(Scope.Thread)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SerializationBenchmark {
+    private StubAccess stub;
+    private SOAPFactory factory;
+    private AuthenticationHeaderE header;
+    private MachinePerformAction machinePerformAction;
+    private ListMachines listMachines;
+    private LabManagerEnvelopeTemplate machinePerformActionTemplate;
+    private LabManagerEnvelopeTemplate listMachinesTemplate;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+
+    @Setup
+    public void setUp() throws Exception {
+        stub = new StubAccess();
+        factory = OMAbstractFactory.getSOAP12Factory();
+        header = LabManagerStubFactory.authHeader("jenkins", "secret");
+        machinePerformAction = new MachinePerformAction();
+        machinePerformAction.setMachineId(5001);
+        machinePerformAction.setAction(1);
+        listMachines = new ListMachines();
+        listMachines.setConfigurationId(1001);
+        String authHeader = LabManagerEnvelopeTemplate.authHeader("jenkins", "secret");
+        machinePerformActionTemplate = new LabManagerEnvelopeTemplate("MachinePerformAction", authHeader, "machineId", "action");
+        listMachinesTemplate = new LabManagerEnvelopeTemplate("ListMachines", authHeader, "configurationId");
+    }
+
+    private int serialize(SOAPEnvelope env) throws Exception {
+        out.reset();
+        env.serializeAndConsume(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public SOAPEnvelope machinePerformActionEnvelope() throws Exception {
+        return stub.toEnvelope(factory, machinePerformAction, header);
+    }
+
+    @Benchmark
+    public int machinePerformActionBytes() throws Exception {
+        return serialize(stub.toEnvelope(factory, machinePerformAction, header));
+    }
+
+    @Benchmark
+    public byte[] machinePerformActionTemplate() {
+        return machinePerformActionTemplate.render(5001, 1);
+    }
+
+    @Benchmark
+    public SOAPEnvelope listMachinesEnvelope() throws Exception {
+        return stub.toEnvelope(factory, listMachines, header);
+    }
+
+    @Benchmark
+    public int listMachinesBytes() throws Exception {
+        return serialize(stub.toEnvelope(factory, listMachines, header));
+    }
+
+    @Benchmark
+    public byte[] listMachinesTemplate() {
+        return listMachinesTemplate.render(1001);
+    }
+}
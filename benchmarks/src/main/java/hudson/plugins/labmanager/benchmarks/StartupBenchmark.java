@@ -0,0 +1,152 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.benchmarks;
+
+import hudson.plugins.labmanager.LabManager;
+import hudson.util.XStream2;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.labmanager.LabManager_x0020_SOAP_x0020_interfaceStub.AuthenticationHeaderE;
+
+/**
+ * What loading a saved cloud costs in a cold JVM, as when Jenkins starts.
+ * Each fork restores one cloud from its config.xml form, once, with the
+ * XStream2 that Jenkins loads its configuration with.
+ *
+ * "restoreCloudWithAuthBean" is what loading used to cost: the cloud kept
+ * its lmAuth header, an ADB bean from the generated stub, so restoring it
+ * loaded the bean classes and the Axis2 databinding they use.  It restores
+ * a config.xml saved by the old plugin into a class with the fields the
+ * cloud persisted then.  "restoreCloud" is what loading does now, and
+ * "restoreOldCloud" what it does until an old config.xml is saved again:
+ * the lmAuth element is skipped as unreadable data.  "restoreCloudAndBuildStub"
+ * also builds the clients and their stubs, which is what the first call
+ * costs now.  Run with -prof gc for the bytes each allocates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(20)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+public class StartupBenchmark {
+    static final String CONFIG =
+            "<hudson.plugins.labmanager.LabManager>"
+            + "<name>LabManager</name>"
+            + "<lmHost>http://labmanager.example.com</lmHost>"
+            + "<lmDescription>Lab Manager</lmDescription>"
+            + "<lmOrganization>Jenkins</lmOrganization>"
+            + "<lmWorkspace>main</lmWorkspace>"
+            + "<lmConfiguration>Slaves</lmConfiguration>"
+            + "<username>jenkins</username>"
+            + "<password>c2VjcmV0</password>"
+            + "<maxOnlineSlaves>20</maxOnlineSlaves>"
+            + "<maxConnectionsPerHost>0</maxConnectionsPerHost>"
+            + "<useLightweightClient>false</useLightweightClient>"
+            + "<readTimeout>60</readTimeout>"
+            + "<actionTimeout>600</actionTimeout>"
+            + "<launchTimeout>900</launchTimeout>"
+            + "<teardownTimeout>900</teardownTimeout>"
+            + "<hedgeReads>false</hedgeReads>"
+            + "<powerOnRate>0</powerOnRate>"
+            + "<resumeRate>0</resumeRate>"
+            + "<revertRate>0</revertRate>"
+            + "<shutdownRate>0</shutdownRate>"
+            + "</hudson.plugins.labmanager.LabManager>";
+
+    /* As the plugin saved it before the cloud stopped keeping lmAuth. */
+    static final String OLD_CONFIG =
+            "<hudson.plugins.labmanager.LabManager>"
+            + "<name>LabManager</name>"
+            + "<lmHost>http://labmanager.example.com</lmHost>"
+            + "<lmDescription>Lab Manager</lmDescription>"
+            + "<lmOrganization>Jenkins</lmOrganization>"
+            + "<lmWorkspace>main</lmWorkspace>"
+            + "<lmConfiguration>Slaves</lmConfiguration>"
+            + "<username>jenkins</username>"
+            + "<password>c2VjcmV0</password>"
+            + "<maxOnlineSlaves>20</maxOnlineSlaves>"
+            + "<lmAuth>"
+            + "<localAuthenticationHeader>"
+            + "<localUsername>jenkins</localUsername>"
+            + "<localUsernameTracker>true</localUsernameTracker>"
+            + "<localPassword>secret</localPassword>"
+            + "<localPasswordTracker>true</localPasswordTracker>"
+            + "<localOrganizationnameTracker>false</localOrganizationnameTracker>"
+            + "<localWorkspacenameTracker>false</localWorkspacenameTracker>"
+            + "</localAuthenticationHeader>"
+            + "</lmAuth>"
+            + "</hudson.plugins.labmanager.LabManager>";
+
+    /**
+     * The fields the cloud persisted before it stopped keeping lmAuth.
+     */
+    static final class OldCloud {
+        private String name;
+        private String lmHost;
+        private String lmDescription;
+        private String lmOrganization;
+        private String lmWorkspace;
+        private String lmConfiguration;
+        private String username;
+        private String password;
+        private int maxOnlineSlaves;
+        private AuthenticationHeaderE lmAuth;
+    }
+
+    private XStream2 xstream;
+    private XStream2 oldXstream;
+
+    @Setup
+    public void setUp() {
+        xstream = new XStream2();
+        oldXstream = new XStream2();
+        oldXstream.alias("hudson.plugins.labmanager.LabManager", OldCloud.class);
+    }
+
+    @Benchmark
+    public Object restoreCloudWithAuthBean() {
+        return oldXstream.fromXML(OLD_CONFIG);
+    }
+
+    @Benchmark
+    public LabManager restoreCloud() {
+        return (LabManager) xstream.fromXML(CONFIG);
+    }
+
+    @Benchmark
+    public LabManager restoreOldCloud() {
+        return (LabManager) xstream.fromXML(OLD_CONFIG);
+    }
+
+    @Benchmark
+    public Object restoreCloudAndBuildStub() {
+        return restoreCloud().getEndpoints();
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.benchmarks;
+
+import hudson.plugins.labmanager.LabManager;
+import hudson.plugins.labmanager.LabManagerClient;
+import hudson.plugins.labmanager.LabManagerConnectionPool;
+import hudson.plugins.labmanager.LabManagerStubFactory;
+import hudson.util.XStream2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.labmanager.LabManager_x0020_SOAP_x0020_interfaceStub;
+
+/**
+ * What each call pays to get hold of a SOAP stub, before and after the
+ * cloud kept one.
+ *
+ * "freshStub" is what the cloud used to do on every call: build a stub,
+ * and with it a new ConfigurationContext, AxisService and ServiceClient.
+ * "freshStubSharedContext" builds a stub per call but reuses the Axis2
+ * context, to show how much of the cost that is.  "cachedStub" is what a
+ * call pays now: getClient() on a cloud whose client, and the stub it
+ * holds, have been built.
+ */
+@State(Scope.Benchmark)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StubSetupBenchmark {
+    private static final String HOST = "http://labmanager.example.com";
+
+    private LabManager cloud;
+    private LabManagerStubFactory factory;
+    private LabManagerConnectionPool pool;
+
+    @Setup
+    public void setUp() {
+        cloud = (LabManager) new XStream2().fromXML(StartupBenchmark.CONFIG);
+        cloud.getEndpoints();
+        factory = new LabManagerStubFactory();
+        pool = LabManagerConnectionPool.forHost(HOST, 0);
+    }
+
+    @Benchmark
+    public LabManager_x0020_SOAP_x0020_interfaceStub freshStub() throws Exception {
+        return new LabManager_x0020_SOAP_x0020_interfaceStub(HOST + "/LabManager/SOAP/LabManager.asmx");
+    }
+
+    @Benchmark
+    public LabManager_x0020_SOAP_x0020_interfaceStub freshStubSharedContext() {
+        return factory.createStub(HOST, pool, null, null, 60000L);
+    }
+
+    @Benchmark
+    public LabManagerClient cachedStub() {
+        return cloud.getClient();
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.harness;
+
+import hudson.model.Node.Mode;
+import hudson.model.TaskListener;
+import hudson.plugins.labmanager.LabManager;
+import hudson.plugins.labmanager.LabManagerVirtualMachineLauncher;
+import hudson.plugins.labmanager.LabManagerVirtualMachineSlave;
+import hudson.plugins.labmanager.simulator.LabManagerSimulator;
+import hudson.plugins.labmanager.simulator.LatencyDistribution;
+import hudson.plugins.labmanager.simulator.SimulatedLab;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+import hudson.slaves.SlaveComputer;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * Sets up a Lab Manager cloud and its slaves against a {@link
+ * LabManagerSimulator} and launches them all at once, the way Jenkins
+ * does when a queue of builds wants them, or disconnects them all at once.
+ *
+ * The settings are system properties:
+ * <pre>
+ * harness.slaves          how many slaves to launch at once (default 20)
+ * harness.readLatency     latency of lookups (default lognormal:50,400)
+ * harness.actionLatency   latency of machine actions (default uniform:500-3000)
+ * harness.connectTime     how long the stub launcher takes, in ms (default 0)
+ * harness.readTimeout     the cloud's read timeout, in seconds (default 10)
+ * harness.actionTimeout   the cloud's action timeout, in seconds (default 30)
+ * harness.launchTimeout   the cloud's launch timeout, in seconds (default 60)
+ * harness.teardownTimeout the cloud's teardown timeout, in seconds (default 60)
+ * </pre>
+ */
+public abstract class AbstractLaunchHarness extends HudsonTestCase {
+    protected static final String USERNAME = "jenkins";
+    protected static final String PASSWORD = "jenkins";
+    protected static final String ORGANIZATION = "Jenkins";
+    protected static final String CONFIGURATION = "Slaves";
+
+    protected static final int SLAVES = Integer.getInteger("harness.slaves", 20);
+    protected static final LatencyDistribution READ_LATENCY =
+            LatencyDistribution.parse(System.getProperty("harness.readLatency", "lognormal:50,400"));
+    protected static final LatencyDistribution ACTION_LATENCY =
+            LatencyDistribution.parse(System.getProperty("harness.actionLatency", "uniform:500-3000"));
+    protected static final long CONNECT_TIME = Long.getLong("harness.connectTime", 0L);
+    protected static final int READ_TIMEOUT = Integer.getInteger("harness.readTimeout", 10);
+    protected static final int ACTION_TIMEOUT = Integer.getInteger("harness.actionTimeout", 30);
+    protected static final int LAUNCH_TIMEOUT = Integer.getInteger("harness.launchTimeout", 60);
+    protected static final int TEARDOWN_TIMEOUT = Integer.getInteger("harness.teardownTimeout", 60);
+
+    /**
+     * A simulator holding one configuration of {@link #SLAVES} machines,
+     * called vm1, vm2 and so on, with the harness's latencies.  The
+     * caller starts and stops it.
+     */
+    protected LabManagerSimulator createSimulator() {
+        LabManagerSimulator simulator = new LabManagerSimulator(
+                SimulatedLab.create(USERNAME, PASSWORD, ORGANIZATION, CONFIGURATION, SLAVES));
+        simulator.setDefaultLatency(READ_LATENCY);
+        simulator.setLatency("MachinePerformAction", ACTION_LATENCY);
+        return simulator;
+    }
+
+    /**
+     * Add a cloud for a running simulator.
+     */
+    protected LabManager addCloud(LabManagerSimulator simulator, String description) {
+        LabManager cloud = new LabManager(simulator.getUrl(), description, ORGANIZATION, "main",
+                CONFIGURATION, USERNAME, PASSWORD, SLAVES, 0, true, null, null,
+                READ_TIMEOUT, ACTION_TIMEOUT, LAUNCH_TIMEOUT, TEARDOWN_TIMEOUT, false, 0, 0, 0, 0);
+        hudson.clouds.add(cloud);
+        return cloud;
+    }
+
+    /**
+     * Add a slave for each of the simulator's machines.
+     * @param idleOption What to do with the machine when the slave
+     * disconnects, as the slave's configuration page offers.
+     */
+    protected List<LabManagerVirtualMachineSlave> addSlaves(String description, String idleOption)
+            throws Exception {
+        List<LabManagerVirtualMachineSlave> slaves = new ArrayList<LabManagerVirtualMachineSlave>();
+        for (int i = 1; i <= SLAVES; i++) {
+            LabManagerVirtualMachineSlave slave = new LabManagerVirtualMachineSlave(
+                    description + "-vm" + i, "Harness slave", createTmpDir().getPath(), "1",
+                    Mode.NORMAL, "", new StubDelegateLauncher(CONNECT_TIME), RetentionStrategy.NOOP,
+                    Collections.<NodeProperty<?>>emptyList(), description, "vm" + i, idleOption,
+                    false, "0");
+            hudson.addNode(slave);
+            slaves.add(slave);
+        }
+        return slaves;
+    }
+
+    protected void remove(LabManager cloud, List<LabManagerVirtualMachineSlave> slaves) throws Exception {
+        for (LabManagerVirtualMachineSlave slave : slaves)
+            hudson.removeNode(slave);
+        hudson.clouds.remove(cloud);
+    }
+
+    /**
+     * Launch every slave at once, each on its own thread as Jenkins would,
+     * and wait for them all to finish.
+     */
+    protected void launchAll(List<LabManagerVirtualMachineSlave> slaves, LaunchStats stats)
+            throws InterruptedException {
+        runAll(slaves, stats, true);
+    }
+
+    /**
+     * Disconnect every slave at once, and wait for them all to finish.
+     * afterDisconnect reports its own failures to the listener, so the
+     * caller must look at the machines to see which worked.
+     */
+    protected void disconnectAll(List<LabManagerVirtualMachineSlave> slaves, LaunchStats stats)
+            throws InterruptedException {
+        runAll(slaves, stats, false);
+    }
+
+    private void runAll(List<LabManagerVirtualMachineSlave> slaves, final LaunchStats stats,
+                    final boolean launch) throws InterruptedException {
+        final TaskListener listener = new StreamTaskListener(new NullStream());
+        ExecutorService pool = Executors.newFixedThreadPool(slaves.size());
+        stats.start();
+        for (LabManagerVirtualMachineSlave slave : slaves) {
+            final LabManagerVirtualMachineLauncher launcher = (LabManagerVirtualMachineLauncher) slave.getLauncher();
+            final SlaveComputer computer = (SlaveComputer) slave.toComputer();
+            pool.execute(new Runnable() {
+                public void run() {
+                    long began = stats.begin();
+                    try {
+                        if (launch)
+                            launcher.launch(computer, listener);
+                        else
+                            launcher.afterDisconnect(computer, listener);
+                        stats.end(began, null);
+                    } catch (Throwable t) {
+                        stats.end(began, t);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Math.max(LAUNCH_TIMEOUT, TEARDOWN_TIMEOUT) * 4L, TimeUnit.SECONDS);
+        stats.finish();
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.harness;
+
+import hudson.plugins.labmanager.LabManager;
+import hudson.plugins.labmanager.LabManagerVirtualMachineSlave;
+import hudson.plugins.labmanager.simulator.ChaosProfile;
+import hudson.plugins.labmanager.simulator.LabManagerSimulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Launches a batch of slaves under each chaos profile and reports the
+ * launch success rate, how many threads the launches kept busy, and the
+ * tail of the launch times.
+ *
+ * <pre>
+ * chaos.profiles  profiles to run, separated by '|'; stock names or specs
+ *                 (default clean|spikes|faults|stuck|drops|trickle|hostile)
+ * chaos.seed      seed for the profiles' choices (default 1)
+ * </pre>
+ *
+ * Plus the settings of {@link AbstractLaunchHarness}.
+ */
+public class ChaosHarness extends AbstractLaunchHarness {
+    private static final String PROFILES = System.getProperty("chaos.profiles",
+            "clean|spikes|faults|stuck|drops|trickle|hostile");
+    private static final long SEED = Long.getLong("chaos.seed", 1L);
+
+    public void testChaosProfiles() throws Exception {
+        List<LaunchStats> results = new ArrayList<LaunchStats>();
+        StringBuilder details = new StringBuilder();
+        int round = 0;
+        for (String name : PROFILES.split("\\|")) {
+            ChaosProfile profile = ChaosProfile.named(name.trim()).seed(SEED);
+            LaunchStats stats = new LaunchStats(profile.getName());
+            LabManagerSimulator simulator = createSimulator();
+            simulator.setChaosProfile(profile);
+            simulator.start(0);
+            String description = "chaos" + (++round);
+            LabManager cloud = addCloud(simulator, description);
+            List<LabManagerVirtualMachineSlave> slaves = addSlaves(description, "Shutdown");
+            try {
+                launchAll(slaves, stats);
+            } finally {
+                remove(cloud, slaves);
+                simulator.stop();
+            }
+            results.add(stats);
+
+            details.append('\n').append(profile.getName()).append(": ")
+                    .append(stats.getSucceeded()).append('/').append(stats.getLaunches())
+                    .append(" launched in ").append(stats.getElapsedMillis()).append("ms, ")
+                    .append(String.format("%.2f", stats.getThreadSecondsPerLaunch()))
+                    .append(" thread-seconds per launch, ")
+                    .append(String.format("%.1f", (double) simulator.getTotalCalls() / stats.getLaunches()))
+                    .append(" SOAP calls per launch\n");
+            details.append("  injected: ").append(simulator.getInjectedCounts()).append('\n');
+            for (Map.Entry<String, Integer> e : stats.getFailures().entrySet())
+                details.append("  ").append(e.getValue()).append(" x ").append(e.getKey()).append('\n');
+            details.append("  cloud: ").append(cloud.getMetricsSnapshot()).append('\n');
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append("\nLaunches of ").append(SLAVES).append(" slaves at once under each chaos profile\n");
+        report.append(LaunchStats.header()).append('\n');
+        for (LaunchStats stats : results)
+            report.append(stats.row()).append('\n');
+        report.append("\nbusy: mean launch threads busy, peak: most at once, threads: peak JVM threads\n");
+        report.append(details);
+        System.out.println(report);
+    }
+}
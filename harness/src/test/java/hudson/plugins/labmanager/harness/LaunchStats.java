@@ -0,0 +1,204 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.harness;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What happened to a batch of launches, or teardowns: how many worked, how
+ * long they took, and how many threads and how much heap they used while
+ * they ran.
+ */
+final class LaunchStats {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final List<MemoryPoolMXBean> POOLS = ManagementFactory.getMemoryPoolMXBeans();
+
+    private final String name;
+    private final List<Long> durations = new ArrayList<Long>();
+    private final List<Long> succeeded = new ArrayList<Long>();
+    private final Map<String, Integer> failures = new TreeMap<String, Integer>();
+    private long started;
+    private long finished;
+    private int inFlight;
+    private int peakInFlight;
+    private long busyNanos;
+    private int peakThreads;
+    private long peakHeap;
+
+    LaunchStats(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    synchronized void start() {
+        THREADS.resetPeakThreadCount();
+        for (MemoryPoolMXBean pool : POOLS) {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+        started = System.nanoTime();
+    }
+
+    synchronized void finish() {
+        finished = System.nanoTime();
+        peakThreads = THREADS.getPeakThreadCount();
+        /* The pools peak at different times, so this is an upper bound. */
+        peakHeap = 0;
+        for (MemoryPoolMXBean pool : POOLS) {
+            if (pool.getType() == MemoryType.HEAP)
+                peakHeap += pool.getPeakUsage().getUsed();
+        }
+    }
+
+    /**
+     * Note that a launch has started.
+     * @return The time to hand back to {@link #end(long, Throwable)}.
+     */
+    synchronized long begin() {
+        if (++inFlight > peakInFlight)
+            peakInFlight = inFlight;
+        return System.nanoTime();
+    }
+
+    /**
+     * Note that a launch has finished.
+     * @param failure Why it failed, or null if it worked.
+     */
+    synchronized void end(long began, Throwable failure) {
+        long nanos = System.nanoTime() - began;
+        inFlight--;
+        busyNanos += nanos;
+        Long millis = Long.valueOf(nanos / 1000000L);
+        durations.add(millis);
+        if (failure == null) {
+            succeeded.add(millis);
+        } else {
+            String reason = describe(failure);
+            Integer count = failures.get(reason);
+            failures.put(reason, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+        }
+    }
+
+    private static String describe(Throwable t) {
+        String message = t.getMessage();
+        if (message == null)
+            return t.getClass().getSimpleName();
+        /* Strip machine names and numbers so that alike failures group. */
+        message = message.replaceAll("[0-9]+", "N");
+        return message.length() > 80 ? message.substring(0, 80) : message;
+    }
+
+    synchronized int getLaunches() {
+        return durations.size();
+    }
+
+    synchronized int getSucceeded() {
+        return succeeded.size();
+    }
+
+    synchronized double getSuccessRate() {
+        return durations.isEmpty() ? 0 : 100.0 * succeeded.size() / durations.size();
+    }
+
+    /**
+     * @return How long it took a launch, in milliseconds, at a percentile
+     * such as 0.99.
+     */
+    synchronized long getPercentile(double p) {
+        return percentile(durations, p);
+    }
+
+    synchronized long getSucceededPercentile(double p) {
+        return percentile(succeeded, p);
+    }
+
+    private static long percentile(List<Long> values, double p) {
+        if (values.isEmpty())
+            return 0;
+        List<Long> sorted = new ArrayList<Long>(values);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index))).longValue();
+    }
+
+    synchronized long getElapsedMillis() {
+        return (finished - started) / 1000000L;
+    }
+
+    /**
+     * @return How many launch threads were busy on average over the run.
+     */
+    synchronized double getMeanBusyThreads() {
+        long wall = finished - started;
+        return wall <= 0 ? 0 : (double) busyNanos / wall;
+    }
+
+    synchronized int getPeakBusyThreads() {
+        return peakInFlight;
+    }
+
+    /**
+     * @return Thread-seconds spent per launch that worked.
+     */
+    synchronized double getThreadSecondsPerLaunch() {
+        return succeeded.isEmpty() ? 0 : busyNanos / 1e9 / succeeded.size();
+    }
+
+    synchronized int getPeakThreads() {
+        return peakThreads;
+    }
+
+    synchronized long getPeakHeapBytes() {
+        return peakHeap;
+    }
+
+    /**
+     * @return Launches that worked per second of the run.
+     */
+    synchronized double getThroughput() {
+        long wall = finished - started;
+        return wall <= 0 ? 0 : succeeded.size() * 1e9 / wall;
+    }
+
+    synchronized Map<String, Integer> getFailures() {
+        return new TreeMap<String, Integer>(failures);
+    }
+
+    static String header() {
+        return String.format("%-12s %6s %7s %8s %8s %8s %8s %8s %6s %6s %7s %7s",
+                "run", "count", "ok%", "p50ms", "p90ms", "p99ms", "maxms", "ok-p99", "busy", "peak", "threads", "heapMB");
+    }
+
+    synchronized String row() {
+        String shortName = name.length() > 12 ? name.substring(0, 12) : name;
+        return String.format("%-12s %6d %6.1f%% %8d %8d %8d %8d %8d %6.1f %6d %7d %7d",
+                shortName, getLaunches(), getSuccessRate(), getPercentile(0.5), getPercentile(0.9),
+                getPercentile(0.99), getPercentile(1.0), getSucceededPercentile(0.99),
+                getMeanBusyThreads(), getPeakBusyThreads(), getPeakThreads(), getPeakHeapBytes() >> 20);
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.harness;
+
+import hudson.plugins.labmanager.LabManager;
+import hudson.plugins.labmanager.LabManagerVirtualMachineSlave;
+import hudson.plugins.labmanager.simulator.LabManagerSimulator;
+import hudson.plugins.labmanager.simulator.SimulatedMachine;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Launches every slave at once, then disconnects them all at once, for a
+ * few rounds against the same cloud.  It reports the time-to-online
+ * distribution, the SOAP calls made per launch and per teardown, and the
+ * peak threads and heap, so that a master can be sized and a change that
+ * slows launches down shows up.
+ *
+ * <pre>
+ * storm.rounds         how many launch and teardown rounds (default 3)
+ * storm.minThroughput  fail if any round launches fewer slaves a second
+ *                      than this (default 0, never fail)
+ * </pre>
+ *
+ * Plus the settings of {@link AbstractLaunchHarness}; harness.connectTime
+ * stands for the time the real launcher takes to bring the slave online.
+ */
+public class LaunchStormHarness extends AbstractLaunchHarness {
+    private static final int ROUNDS = Integer.getInteger("storm.rounds", 3);
+    private static final double MIN_THROUGHPUT = Double.parseDouble(System.getProperty("storm.minThroughput", "0"));
+
+    public void testLaunchStorm() throws Exception {
+        LabManagerSimulator simulator = createSimulator();
+        simulator.start(0);
+        LabManager cloud = addCloud(simulator, "storm");
+        List<LabManagerVirtualMachineSlave> slaves = addSlaves("storm", "Shutdown");
+
+        StringBuilder table = new StringBuilder();
+        StringBuilder details = new StringBuilder();
+        double slowest = Double.MAX_VALUE;
+        try {
+            for (int round = 1; round <= ROUNDS; round++) {
+                simulator.resetCallCounts();
+                LaunchStats launches = new LaunchStats("launch " + round);
+                launchAll(slaves, launches);
+                Map<String, Long> launchCalls = simulator.getCallCounts();
+                long launchTotal = simulator.getTotalCalls();
+
+                simulator.resetCallCounts();
+                LaunchStats teardowns = new LaunchStats("teardown " + round);
+                disconnectAll(slaves, teardowns);
+                Map<String, Long> teardownCalls = simulator.getCallCounts();
+                long teardownTotal = simulator.getTotalCalls();
+                int off = 0;
+                for (SimulatedMachine m : simulator.getLab().getMachines()) {
+                    if (m.getStatus() == SimulatedMachine.STATUS_OFF)
+                        off++;
+                }
+
+                table.append(launches.row()).append('\n').append(teardowns.row()).append('\n');
+                details.append("\nround ").append(round).append(": ")
+                        .append(String.format("%.1f", launches.getThroughput())).append(" launches/s, ")
+                        .append(launches.getSucceeded()).append(" online, ")
+                        .append(off).append(" machines off after teardown\n");
+                details.append("  SOAP calls per launch: ")
+                        .append(String.format("%.1f", (double) launchTotal / launches.getLaunches()))
+                        .append(' ').append(launchCalls).append('\n');
+                details.append("  SOAP calls per teardown: ")
+                        .append(String.format("%.1f", (double) teardownTotal / teardowns.getLaunches()))
+                        .append(' ').append(teardownCalls).append('\n');
+                for (Map.Entry<String, Integer> e : launches.getFailures().entrySet())
+                    details.append("  launch failed: ").append(e.getValue()).append(" x ").append(e.getKey()).append('\n');
+                slowest = Math.min(slowest, launches.getThroughput());
+            }
+            details.append("\ncloud: ").append(cloud.getMetricsSnapshot()).append('\n');
+        } finally {
+            remove(cloud, slaves);
+            simulator.stop();
+        }
+
+        System.out.println("\nLaunch storm of " + SLAVES + " slaves, " + ROUNDS + " rounds\n"
+                + LaunchStats.header() + '\n' + table
+                + "\nbusy: mean threads busy, peak: most at once, threads: peak JVM threads,"
+                + " heapMB: peak heap\n" + details);
+        if (MIN_THROUGHPUT > 0)
+            assertTrue("Launched " + slowest + " slaves a second, expected at least " + MIN_THROUGHPUT,
+                    slowest >= MIN_THROUGHPUT);
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.harness;
+
+import hudson.model.Descriptor;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.SlaveComputer;
+
+/**
+ * Stands in for the real launcher that {@link
+ * hudson.plugins.labmanager.LabManagerVirtualMachineLauncher} hands over
+ * to once the machine is up.  It does not connect a channel; it only
+ * notes that the machine got that far.
+ */
+public class StubDelegateLauncher extends ComputerLauncher {
+    private final long connectMillis;
+
+    /**
+     * @param connectMillis How long to pretend connecting to the slave
+     * takes.
+     */
+    public StubDelegateLauncher(long connectMillis) {
+        this.connectMillis = connectMillis;
+    }
+
+    @Override
+    public void launch(SlaveComputer slaveComputer, TaskListener taskListener)
+            throws InterruptedException {
+        if (connectMillis > 0)
+            Thread.sleep(connectMillis);
+        taskListener.getLogger().println("Stub launcher reached");
+    }
+
+    @Override
+    public Descriptor<ComputerLauncher> getDescriptor() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.simulator;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * How badly the simulator should misbehave.  Each kind of trouble happens
+ * to a given fraction of the requests:
+ *
+ * <ul>
+ * <li>spike: the request takes extra time, drawn from a distribution.</li>
+ * <li>fault: the request fails with a SOAP fault.</li>
+ * <li>stuck: a power-on, resume, reset or revert leaves the machine in
+ *     MACHINE_STATUS_STUCK.</li>
+ * <li>drop: the request is carried out, but the connection is closed
+ *     without an answer.</li>
+ * <li>trickle: the answer is sent a few bytes at a time.</li>
+ * </ul>
+ *
+ * Profiles are written as, for example,
+ * <code>spike=0.1@lognormal:2000,15000;fault=0.05;ops=ListMachines+GetMachineByName</code>;
+ * see {@link #parse(String)}.  There are also some named ones, see
+ * {@link #named(String)}.
+ */
+public final class ChaosProfile {
+    private static final String[] NAMES = { "clean", "spikes", "faults", "stuck", "drops", "trickle", "hostile" };
+
+    private final String name;
+    private double spikeRate;
+    private LatencyDistribution spike = LatencyDistribution.NONE;
+    private double faultRate;
+    private String faultReason = "The server is busy; try again later";
+    private double stuckRate;
+    private double dropRate;
+    private double trickleRate;
+    private int trickleBytesPerSecond = 256;
+    private Set<String> operations;
+    private final Random random = new Random();
+
+    public ChaosProfile(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ChaosProfile spikes(double rate, LatencyDistribution extra) {
+        this.spikeRate = rate;
+        this.spike = extra;
+        return this;
+    }
+
+    public ChaosProfile faults(double rate, String reason) {
+        this.faultRate = rate;
+        if (reason != null)
+            this.faultReason = reason;
+        return this;
+    }
+
+    public ChaosProfile stuck(double rate) {
+        this.stuckRate = rate;
+        return this;
+    }
+
+    public ChaosProfile drops(double rate) {
+        this.dropRate = rate;
+        return this;
+    }
+
+    public ChaosProfile trickle(double rate, int bytesPerSecond) {
+        this.trickleRate = rate;
+        this.trickleBytesPerSecond = Math.max(1, bytesPerSecond);
+        return this;
+    }
+
+    /**
+     * Only misbehave on these operations.  Machines still get stuck
+     * whatever this says, as that is not a property of a request.
+     */
+    public ChaosProfile only(String... operations) {
+        this.operations = new HashSet<String>(Arrays.asList(operations));
+        return this;
+    }
+
+    /**
+     * Make the profile's choices repeatable.
+     */
+    public ChaosProfile seed(long seed) {
+        synchronized (random) {
+            random.setSeed(seed);
+        }
+        return this;
+    }
+
+    private boolean roll(double rate) {
+        if (rate <= 0)
+            return false;
+        synchronized (random) {
+            return random.nextDouble() < rate;
+        }
+    }
+
+    private boolean applies(String operation) {
+        return operations == null || operations.contains(operation);
+    }
+
+    /**
+     * @return The extra time to spend on this request, in milliseconds.
+     */
+    long spike(String operation) {
+        if (!applies(operation) || !roll(spikeRate))
+            return 0;
+        synchronized (random) {
+            return Math.max(0, spike.sample(random));
+        }
+    }
+
+    /**
+     * @return The fault to fail this request with, or null.
+     */
+    SimulatorFault fault(String operation) {
+        return applies(operation) && roll(faultRate) ? SimulatorFault.server(faultReason) : null;
+    }
+
+    boolean stuck() {
+        return roll(stuckRate);
+    }
+
+    boolean drop(String operation) {
+        return applies(operation) && roll(dropRate);
+    }
+
+    /**
+     * @return How fast to send the answer to this request, in bytes a
+     * second, or 0 for as fast as we can.
+     */
+    int trickle(String operation) {
+        return applies(operation) && roll(trickleRate) ? trickleBytesPerSecond : 0;
+    }
+
+    /**
+     * @return The names {@link #named(String)} knows.
+     */
+    public static String[] getNames() {
+        return NAMES.clone();
+    }
+
+    /**
+     * @return One of the stock profiles, or a profile parsed from the name
+     * if it is not one of them.
+     */
+    public static ChaosProfile named(String name) {
+        if ("clean".equals(name))
+            return new ChaosProfile(name);
+        if ("spikes".equals(name))
+            return new ChaosProfile(name).spikes(0.1, LatencyDistribution.logNormal(2000, 15000));
+        if ("faults".equals(name))
+            return new ChaosProfile(name).faults(0.1, null);
+        if ("stuck".equals(name))
+            return new ChaosProfile(name).stuck(0.1);
+        if ("drops".equals(name))
+            return new ChaosProfile(name).drops(0.05);
+        if ("trickle".equals(name))
+            return new ChaosProfile(name).trickle(0.2, 512);
+        if ("hostile".equals(name))
+            return new ChaosProfile(name).spikes(0.05, LatencyDistribution.logNormal(2000, 15000))
+                    .faults(0.05, null).stuck(0.05).drops(0.02).trickle(0.05, 512);
+        return parse(name);
+    }
+
+    /**
+     * Parse a profile such as
+     * <code>spike=0.1@uniform:1000-5000;fault=0.05@Server busy;stuck=0.02;drop=0.01;trickle=0.1@128;ops=ListMachines</code>.
+     * The part after '@' is optional, and the operations are separated by
+     * '+'.  The whole spec becomes the profile's name.
+     */
+    public static ChaosProfile parse(String spec) {
+        ChaosProfile p = new ChaosProfile(spec);
+        for (String part : spec.split(";")) {
+            part = part.trim();
+            if (part.length() == 0)
+                continue;
+            int eq = part.indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("Bad chaos setting: " + part);
+            String key = part.substring(0, eq).trim();
+            String value = part.substring(eq + 1).trim();
+            if ("ops".equals(key)) {
+                p.only(value.split("\\+"));
+                continue;
+            }
+            int at = value.indexOf('@');
+            String arg = at < 0 ? null : value.substring(at + 1);
+            double rate = Double.parseDouble(at < 0 ? value : value.substring(0, at));
+            if ("spike".equals(key))
+                p.spikes(rate, arg == null ? LatencyDistribution.logNormal(2000, 15000) : LatencyDistribution.parse(arg));
+            else if ("fault".equals(key))
+                p.faults(rate, arg);
+            else if ("stuck".equals(key))
+                p.stuck(rate);
+            else if ("drop".equals(key))
+                p.drops(rate);
+            else if ("trickle".equals(key))
+                p.trickle(rate, arg == null ? 256 : Integer.parseInt(arg));
+            else
+                throw new IllegalArgumentException("Unknown chaos setting: " + key);
+        }
+        return p;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
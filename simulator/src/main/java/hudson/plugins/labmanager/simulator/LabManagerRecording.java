@@ -0,0 +1,237 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * SOAP traffic recorded from a real Lab Manager by the plugin's
+ * LabManagerRecorder, as read back for {@link LabManagerReplayServer}.
+ *
+ * The file starts with the magic "LMREC" and a version byte, then holds
+ * one record per call:
+ * <pre>
+ * long   when the call started, in milliseconds since the epoch
+ * int    milliseconds until the response headers arrived
+ * int    milliseconds until the response was read, or the call failed
+ * short  HTTP status, or 0 if no response came
+ * UTF    operation
+ * UTF    response Content-Type, or ""
+ * int, bytes  request, deflated
+ * int, bytes  response, deflated
+ * </pre>
+ * A file cut short by a crash is read up to its last whole record.
+ */
+public final class LabManagerRecording {
+    private static final byte[] MAGIC = { 'L', 'M', 'R', 'E', 'C' };
+    private static final int VERSION = 1;
+
+    private final List<Call> calls;
+
+    private LabManagerRecording(List<Call> calls) {
+        this.calls = Collections.unmodifiableList(calls);
+    }
+
+    public List<Call> getCalls() {
+        return calls;
+    }
+
+    public static LabManagerRecording read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(file + " is not a Lab Manager recording");
+            int version = in.readUnsignedByte();
+            if (version != VERSION)
+                throw new IOException(file + " is a version " + version + " recording; expected " + VERSION);
+            List<Call> calls = new ArrayList<Call>();
+            while (true) {
+                Call call;
+                try {
+                    call = readCall(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                calls.add(call);
+            }
+            return new LabManagerRecording(calls);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Call readCall(DataInputStream in) throws IOException {
+        long started = in.readLong();
+        int headersMillis = in.readInt();
+        int totalMillis = in.readInt();
+        int status = in.readUnsignedShort();
+        String operation = in.readUTF();
+        String contentType = in.readUTF();
+        byte[] request = readInflated(in);
+        byte[] response = readInflated(in);
+        return new Call(started, headersMillis, totalMillis, status, operation,
+                contentType.length() == 0 ? null : contentType, request, response);
+    }
+
+    private static byte[] readInflated(DataInputStream in) throws IOException {
+        byte[] deflated = new byte[in.readInt()];
+        in.readFully(deflated);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            byte[] out = new byte[Math.max(256, deflated.length * 4)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == out.length)
+                    out = Arrays.copyOf(out, out.length * 2);
+                int n = inflater.inflate(out, length, out.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated record");
+                length += n;
+            }
+            return Arrays.copyOf(out, length);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt record: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Print the call mix, payload sizes and latencies of each operation.
+     */
+    public void printSummary(PrintStream out) {
+        Map<String, List<Call>> byOperation = new TreeMap<String, List<Call>>();
+        for (Call c : calls) {
+            List<Call> list = byOperation.get(c.getOperation());
+            if (list == null)
+                byOperation.put(c.getOperation(), list = new ArrayList<Call>());
+            list.add(c);
+        }
+        out.println(calls.size() + " calls");
+        out.println(String.format("%-32s %7s %6s %9s %9s %7s %7s %7s %7s",
+                "operation", "calls", "failed", "reqBytes", "respBytes", "p50ms", "p90ms", "p99ms", "maxms"));
+        for (Map.Entry<String, List<Call>> e : byOperation.entrySet()) {
+            List<Call> list = e.getValue();
+            int[] millis = new int[list.size()];
+            long requestBytes = 0;
+            long responseBytes = 0;
+            int failed = 0;
+            for (int i = 0; i < millis.length; i++) {
+                Call c = list.get(i);
+                millis[i] = c.getTotalMillis();
+                requestBytes += c.getRequest().length;
+                responseBytes += c.getResponse().length;
+                if (c.getStatus() != 200)
+                    failed++;
+            }
+            Arrays.sort(millis);
+            out.println(String.format("%-32s %7d %6d %9d %9d %7d %7d %7d %7d", e.getKey(), list.size(), failed,
+                    requestBytes / list.size(), responseBytes / list.size(), percentile(millis, 50),
+                    percentile(millis, 90), percentile(millis, 99), millis[millis.length - 1]));
+        }
+    }
+
+    private static int percentile(int[] sorted, int p) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)];
+    }
+
+    /**
+     * One recorded call.  The request has no authentication header.
+     */
+    public static final class Call {
+        private final long started;
+        private final int headersMillis;
+        private final int totalMillis;
+        private final int status;
+        private final String operation;
+        private final String contentType;
+        private final byte[] request;
+        private final byte[] response;
+
+        Call(long started, int headersMillis, int totalMillis, int status, String operation,
+                        String contentType, byte[] request, byte[] response) {
+            this.started = started;
+            this.headersMillis = headersMillis;
+            this.totalMillis = totalMillis;
+            this.status = status;
+            this.operation = operation;
+            this.contentType = contentType;
+            this.request = request;
+            this.response = response;
+        }
+
+        public long getStarted() {
+            return started;
+        }
+
+        public int getHeadersMillis() {
+            return headersMillis;
+        }
+
+        public int getTotalMillis() {
+            return totalMillis;
+        }
+
+        /**
+         * @return The HTTP status, or 0 if the server never answered.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return The response's Content-Type, or null if it had none.
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        public byte[] getRequest() {
+            return request;
+        }
+
+        public byte[] getResponse() {
+            return response;
+        }
+
+        @Override
+        public String toString() {
+            return operation + " (HTTP " + status + ", " + totalMillis + "ms)";
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.stream.XMLStreamException;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Serves a {@link LabManagerRecording} back with the timing it was
+ * recorded with, so that performance work can be done against real
+ * payloads and real server latencies without a Lab Manager.
+ *
+ * A request gets the answer recorded for the same operation and
+ * parameters; if that was asked several times, the answers are given in
+ * the order they were recorded, starting again after the last.  Failing
+ * that, it gets the next answer recorded for the operation at all, and
+ * failing that a fault.  Credentials are not checked.
+ */
+public class LabManagerReplayServer extends LabManagerSimulator {
+    private static final Logger LOGGER = Logger.getLogger(LabManagerReplayServer.class.getName());
+
+    private final Map<String, Answers> byRequest = new HashMap<String, Answers>();
+    private final Map<String, Answers> byOperation = new HashMap<String, Answers>();
+    private volatile double speed = 1;
+
+    public LabManagerReplayServer(LabManagerRecording recording) {
+        super(new SimulatedLab());
+        for (LabManagerRecording.Call call : recording.getCalls()) {
+            LabManagerSimulator.SoapRequest request;
+            try {
+                request = LabManagerSimulator.SoapRequest.parse(call.getRequest());
+            } catch (XMLStreamException e) {
+                LOGGER.log(Level.WARNING, "Skipping an unreadable recorded " + call.getOperation(), e);
+                continue;
+            }
+            add(byRequest, key(request), call);
+            add(byOperation, request.operation, call);
+        }
+    }
+
+    private static void add(Map<String, Answers> map, String key, LabManagerRecording.Call call) {
+        Answers answers = map.get(key);
+        if (answers == null)
+            map.put(key, answers = new Answers());
+        answers.calls.add(call);
+    }
+
+    private static String key(LabManagerSimulator.SoapRequest request) {
+        return request.operation + new TreeMap<String, String>(request.params);
+    }
+
+    /**
+     * Scale the recorded timing: 1 replays it as recorded, 0.5 twice as
+     * fast, 0 without any delay.
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0)
+            throw new IllegalArgumentException("Negative speed " + speed);
+        this.speed = speed;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    private long scaled(long millis) {
+        return (long) (millis * speed);
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        boolean soap12 = contentType != null && contentType.startsWith("application/soap+xml");
+        LabManagerSimulator.SoapRequest request;
+        try {
+            request = LabManagerSimulator.SoapRequest.parse(readFully(exchange.getRequestBody()));
+        } catch (XMLStreamException e) {
+            send(exchange, soap12, 500, fault(soap12, SimulatorFault.sender("Malformed request: " + e.getMessage())), 0);
+            return;
+        }
+        called(request.operation);
+
+        LabManagerRecording.Call call = next(byRequest.get(key(request)));
+        if (call == null)
+            call = next(byOperation.get(request.operation));
+        if (call == null) {
+            send(exchange, soap12, 500, fault(soap12,
+                    SimulatorFault.sender("No recorded answer for " + request.operation)), 0);
+            return;
+        }
+        if (call.getStatus() == 0) {
+            /* The server never answered this one. */
+            pause(scaled(call.getTotalMillis()));
+            exchange.close();
+            return;
+        }
+        pause(scaled(call.getHeadersMillis()));
+        byte[] response = call.getResponse();
+        if (call.getContentType() != null)
+            exchange.getResponseHeaders().set("Content-Type", call.getContentType());
+        exchange.sendResponseHeaders(call.getStatus(), response.length == 0 ? -1 : response.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            /* Spread the body over the time it took to read, a chunk
+             * every 100ms. */
+            long millis = scaled(call.getTotalMillis() - call.getHeadersMillis());
+            int steps = (int) Math.max(1, Math.min(millis / 100, response.length));
+            int chunk = (response.length + steps - 1) / Math.max(1, steps);
+            for (int off = 0; off < response.length; off += chunk) {
+                out.write(response, off, Math.min(chunk, response.length - off));
+                if (steps > 1) {
+                    out.flush();
+                    pause(millis / steps);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static LabManagerRecording.Call next(Answers answers) {
+        return answers == null ? null : answers.next();
+    }
+
+    /**
+     * The answers recorded for one request, and which to give next.
+     */
+    private static final class Answers {
+        final List<LabManagerRecording.Call> calls = new ArrayList<LabManagerRecording.Call>();
+        private final AtomicInteger next = new AtomicInteger();
+
+        LabManagerRecording.Call next() {
+            return calls.get((next.getAndIncrement() & Integer.MAX_VALUE) % calls.size());
+        }
+    }
+
+    /**
+     * Replay a recording until killed.
+     *
+     * <pre>
+     * FILE          the recording, from -Dhudson.plugins.labmanager.LabManagerRecorder.file
+     * --port N      port to listen on, 0 for any (default 8080)
+     * --speed X     scale the recorded timing by X (default 1)
+     * --summary     print what the recording holds and exit
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        String file = null;
+        int port = 8080;
+        double speed = 1;
+        boolean summary = false;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--summary".equals(arg)) {
+                summary = true;
+            } else if ("--port".equals(arg) || "--speed".equals(arg)) {
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                String value = args[++i];
+                if ("--port".equals(arg))
+                    port = Integer.parseInt(value);
+                else
+                    speed = Double.parseDouble(value);
+            } else if (arg.startsWith("--") || file != null) {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            } else {
+                file = arg;
+            }
+        }
+        if (file == null)
+            throw new IllegalArgumentException("Usage: LabManagerReplayServer FILE [--port N] [--speed X] [--summary]");
+        LabManagerRecording recording = LabManagerRecording.read(new File(file));
+        if (summary) {
+            recording.printSummary(System.out);
+            return;
+        }
+        LabManagerReplayServer server = new LabManagerReplayServer(recording);
+        server.setSpeed(speed);
+        server.start(new InetSocketAddress(port));
+        System.out.println("Replaying " + recording.getCalls().size() + " Lab Manager calls at "
+                + server.getUrl() + SERVICE_PATH);
+        new CountDownLatch(1).await();
+    }
+}
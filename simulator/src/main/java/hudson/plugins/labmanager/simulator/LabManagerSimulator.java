@@ -0,0 +1,798 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.simulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for a Lab Manager server, for load tests and benchmarks that
+ * must not go near a real one.
+ *
+ * It answers the SOAP 1.1 and 1.2 operations of lib/LabManager.wsdl over
+ * plain HTTP, from an in-memory {@link SimulatedLab}.  Logins are checked,
+ * sessions keep their organization and workspace in an ASP.NET_SessionId
+ * cookie, machines change state as actions are performed on them, and a
+ * machine is busy for as long as its action takes.  Each operation, and
+ * each machine action, can be given its own {@link LatencyDistribution}.
+ *
+ * To point a cloud at it, use {@link #getUrl()} as the Lab Manager host.
+ * A {@link ChaosProfile} makes it misbehave: slow down, fail, drop
+ * connections, trickle its answers or leave machines stuck.
+ *
+ * Run {@link #main(String[])} for a standalone server.
+ */
+public class LabManagerSimulator {
+    private static final Logger LOGGER = Logger.getLogger(LabManagerSimulator.class.getName());
+
+    public static final String SERVICE_PATH = "/LabManager/SOAP/LabManager.asmx";
+    static final String NAMESPACE = "http://vmware.com/labmanager";
+    static final String SOAP11_NAMESPACE = "http://schemas.xmlsoap.org/soap/envelope/";
+    static final String SOAP12_NAMESPACE = "http://www.w3.org/2003/05/soap-envelope";
+    static final String SESSION_COOKIE = "ASP.NET_SessionId";
+
+    private static final XMLInputFactory XML_INPUT = XMLInputFactory.newInstance();
+
+    private final SimulatedLab lab;
+    private final Map<String, LatencyDistribution> latencies = new ConcurrentHashMap<String, LatencyDistribution>();
+    private volatile LatencyDistribution defaultLatency = LatencyDistribution.NONE;
+    private final Random random = new Random();
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+    private final ConcurrentMap<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> injected = new ConcurrentHashMap<String, AtomicLong>();
+    private volatile ChaosProfile chaos = new ChaosProfile("clean");
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public LabManagerSimulator(SimulatedLab lab) {
+        this.lab = lab;
+    }
+
+    public SimulatedLab getLab() {
+        return lab;
+    }
+
+    /**
+     * Set how long an operation takes, e.g. "ListMachines".  For
+     * MachinePerformAction this is how long the machine stays busy.
+     */
+    public void setLatency(String operation, LatencyDistribution latency) {
+        latencies.put(operation, latency);
+    }
+
+    /**
+     * Set how long one machine action takes, overriding the latency of
+     * MachinePerformAction for it.
+     */
+    public void setActionLatency(int action, LatencyDistribution latency) {
+        latencies.put("MachinePerformAction." + action, latency);
+    }
+
+    /**
+     * Set how long the operations without a latency of their own take.
+     */
+    public void setDefaultLatency(LatencyDistribution latency) {
+        defaultLatency = latency;
+    }
+
+    /**
+     * Set how the simulator should misbehave from now on.
+     */
+    public void setChaosProfile(ChaosProfile chaos) {
+        this.chaos = chaos;
+    }
+
+    public ChaosProfile getChaosProfile() {
+        return chaos;
+    }
+
+    /**
+     * Start listening on the loopback interface.
+     * @param port The port, or 0 for any free port.
+     */
+    public void start(int port) throws IOException {
+        start(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+    }
+
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        if (server != null)
+            throw new IllegalStateException("Already started");
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Lab Manager simulator " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server = HttpServer.create(address, 256);
+        server.createContext(SERVICE_PATH, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    LabManagerSimulator.this.handle(exchange);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Simulator failed to answer a request", e);
+                    exchange.close();
+                } catch (IOException e) {
+                    /* The client went away. */
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public synchronized void stop() {
+        if (server == null)
+            return;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        executor = null;
+    }
+
+    /**
+     * @return The address to give a cloud as its Lab Manager host, such as
+     * http://127.0.0.1:51234.
+     */
+    public synchronized String getUrl() {
+        if (server == null)
+            throw new IllegalStateException("Not started");
+        InetSocketAddress a = server.getAddress();
+        return "http://" + a.getAddress().getHostAddress() + ':' + a.getPort();
+    }
+
+    /**
+     * @return How many times each operation has been called.
+     */
+    public Map<String, Long> getCallCounts() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : calls.entrySet())
+            result.put(e.getKey(), Long.valueOf(e.getValue().get()));
+        return result;
+    }
+
+    public long getCallCount(String operation) {
+        AtomicLong count = calls.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    public long getTotalCalls() {
+        long total = 0;
+        for (AtomicLong count : calls.values())
+            total += count.get();
+        return total;
+    }
+
+    /**
+     * @return How many times each kind of trouble has been caused by the
+     * chaos profile: spike, fault, stuck, drop and trickle.
+     */
+    public Map<String, Long> getInjectedCounts() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : injected.entrySet())
+            result.put(e.getKey(), Long.valueOf(e.getValue().get()));
+        return result;
+    }
+
+    public void resetCallCounts() {
+        calls.clear();
+        injected.clear();
+    }
+
+    /**
+     * Count a call to an operation, for {@link #getCallCounts()}.
+     */
+    void called(String operation) {
+        count(calls, operation);
+    }
+
+    private static void count(ConcurrentMap<String, AtomicLong> counts, String key) {
+        AtomicLong count = counts.get(key);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = counts.putIfAbsent(key, created);
+            if (count == null)
+                count = created;
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * @return How long to take over the operation, in milliseconds.
+     */
+    protected long latency(String operation, Map<String, String> params) {
+        LatencyDistribution d = null;
+        if ("MachinePerformAction".equals(operation))
+            d = latencies.get("MachinePerformAction." + params.get("action"));
+        if (d == null)
+            d = latencies.get(operation);
+        if (d == null)
+            d = defaultLatency;
+        synchronized (random) {
+            return Math.max(0, d.sample(random));
+        }
+    }
+
+    protected static void pause(long millis) {
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Answer one HTTP request.
+     */
+    protected void handle(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        boolean soap12 = contentType != null && contentType.startsWith("application/soap+xml");
+        byte[] body = readFully(exchange.getRequestBody());
+
+        Session session = session(exchange);
+        SoapRequest request;
+        String response;
+        int status = 200;
+        try {
+            request = SoapRequest.parse(body);
+        } catch (XMLStreamException e) {
+            send(exchange, soap12, 500, fault(soap12, SimulatorFault.sender("Malformed request: " + e.getMessage())), 0);
+            return;
+        }
+        String op = request.operation;
+        called(op);
+
+        ChaosProfile chaos = this.chaos;
+        long spike = chaos.spike(op);
+        if (spike > 0) {
+            count(injected, "spike");
+            pause(spike);
+        }
+        try {
+            SimulatorFault fault = chaos.fault(op);
+            if (fault != null) {
+                count(injected, "fault");
+                throw fault;
+            }
+            response = respond(request, session);
+        } catch (SimulatorFault f) {
+            status = 500;
+            response = fault(soap12, f);
+        }
+        if (chaos.drop(op)) {
+            /* The work is done, but the caller never hears about it. */
+            count(injected, "drop");
+            exchange.close();
+            return;
+        }
+        int bytesPerSecond = chaos.trickle(op);
+        if (bytesPerSecond > 0)
+            count(injected, "trickle");
+        send(exchange, soap12, status, status == 200 ? envelope(soap12, response) : response, bytesPerSecond);
+    }
+
+    /**
+     * Carry out an operation.
+     * @return The response element, without the envelope.
+     */
+    protected String respond(SoapRequest request, Session session) throws SimulatorFault {
+        if (!lab.authenticate(request.username, request.password))
+            throw SimulatorFault.sender("Unable to authenticate user " + request.username);
+        String op = request.operation;
+        Map<String, String> p = request.params;
+        if (!"MachinePerformAction".equals(op))
+            pause(latency(op, p));
+
+        StringBuilder sb = new StringBuilder(256);
+        sb.append('<').append(op).append("Response xmlns=\"").append(NAMESPACE).append("\">");
+        if ("SetCurrentOrganizationByName".equals(op)) {
+            String org = p.get("orgName");
+            if (!lab.hasOrganization(org))
+                throw SimulatorFault.sender("Organization " + org + " not found");
+            session.bind(org, null);
+        } else if ("SetCurrentWorkspaceByName".equals(op)) {
+            String org = p.get("orgName");
+            String ws = p.get("workspaceName");
+            if (!lab.hasWorkspace(org, ws))
+                throw SimulatorFault.sender("Workspace " + ws + " not found in organization " + org);
+            session.bind(org, ws);
+        } else if ("GetCurrentOrganizationName".equals(op)) {
+            element(sb, "GetCurrentOrganizationNameResult", session.getOrganization());
+        } else if ("GetCurrentWorkspaceName".equals(op)) {
+            element(sb, "GetCurrentWorkspaceNameResult", session.getWorkspace());
+        } else if ("GetConfiguration".equals(op)) {
+            configuration(sb, "GetConfigurationResult", configuration(p, "id"), request.username);
+        } else if ("GetConfigurationByName".equals(op)) {
+            sb.append("<GetConfigurationByNameResult>");
+            for (SimulatedConfiguration c : session.find(lab, p.get("name")))
+                configuration(sb, "Configuration", c, request.username);
+            sb.append("</GetConfigurationByNameResult>");
+        } else if ("GetSingleConfigurationByName".equals(op)) {
+            String name = p.get("name");
+            List<SimulatedConfiguration> found = session.find(lab, name);
+            if (found.isEmpty())
+                throw SimulatorFault.sender("Configuration " + name + " does not exist");
+            if (found.size() > 1)
+                throw SimulatorFault.sender("More than one configuration is named " + name);
+            configuration(sb, "GetSingleConfigurationByNameResult", found.get(0), request.username);
+        } else if ("ListConfigurations".equals(op)) {
+            sb.append("<ListConfigurationsResult>");
+            for (SimulatedConfiguration c : session.find(lab, null))
+                configuration(sb, "Configuration", c, request.username);
+            sb.append("</ListConfigurationsResult>");
+        } else if ("ConfigurationPerformAction".equals(op)) {
+            int action = intParam(p, "action");
+            for (SimulatedMachine m : configuration(p, "configurationId").getMachines()) {
+                try {
+                    m.begin(action);
+                    m.end(action);
+                } catch (SimulatorFault f) {
+                    /* Lab Manager acts on the machines it can. */
+                }
+            }
+        } else if ("ConfigurationDeploy".equals(op)) {
+            configuration(p, "configurationId").setDeployed(true);
+        } else if ("ConfigurationUndeploy".equals(op)) {
+            SimulatedConfiguration c = configuration(p, "configurationId");
+            c.setDeployed(false);
+            for (SimulatedMachine m : c.getMachines())
+                m.setStatus(SimulatedMachine.STATUS_OFF);
+        } else if ("ConfigurationClone".equals(op)) {
+            SimulatedConfiguration c = configuration(p, "configurationId");
+            String ws = p.get("newWorkspaceName");
+            if (!lab.hasWorkspace(c.getOrganization(), ws))
+                throw SimulatorFault.sender("Workspace " + ws + " not found");
+            element(sb, "ConfigurationCloneResult", String.valueOf(lab.copy(c, ws, c.getName()).getId()));
+        } else if ("ConfigurationCapture".equals(op)) {
+            SimulatedConfiguration c = configuration(p, "configurationId");
+            element(sb, "ConfigurationCaptureResult", String.valueOf(
+                    lab.copy(c, "library", p.get("newLibraryName")).getId()));
+        } else if ("ConfigurationCheckout".equals(op)) {
+            SimulatedConfiguration c = configuration(p, "configurationId");
+            String ws = p.get("workspaceName");
+            if (!lab.hasWorkspace(c.getOrganization(), ws))
+                throw SimulatorFault.sender("Workspace " + ws + " not found");
+            element(sb, "ConfigurationCheckoutResult", String.valueOf(lab.copy(c, ws, c.getName()).getId()));
+        } else if ("ConfigurationDelete".equals(op)) {
+            lab.remove(configuration(p, "configurationId"));
+        } else if ("ConfigurationSetPublicPrivate".equals(op)) {
+            configuration(p, "configurationId").setPublic(Boolean.valueOf(p.get("isPublic")).booleanValue());
+        } else if ("LiveLink".equals(op)) {
+            element(sb, "LiveLinkResult", "http://localhost/LabManager/LiveLink.aspx?config=" + p.get("configName"));
+        } else if ("ListMachines".equals(op)) {
+            SimulatedConfiguration c = configuration(p, "configurationId");
+            sb.append("<ListMachinesResult>");
+            for (SimulatedMachine m : c.getMachines())
+                machine(sb, "Machine", m, request.username);
+            sb.append("</ListMachinesResult>");
+        } else if ("GetMachine".equals(op)) {
+            machine(sb, "GetMachineResult", machine(p), request.username);
+        } else if ("GetMachineByName".equals(op)) {
+            SimulatedMachine m = configuration(p, "configurationId").getMachineByName(p.get("name"));
+            if (m != null)
+                machine(sb, "GetMachineByNameResult", m, request.username);
+        } else if ("MachinePerformAction".equals(op)) {
+            performAction(machine(p), intParam(p, "action"), latency(op, p));
+        } else {
+            throw SimulatorFault.sender("Unknown operation " + op);
+        }
+        sb.append("</").append(op).append("Response>");
+        return sb.toString();
+    }
+
+    /**
+     * Carry out a machine action, keeping the machine busy for the given
+     * time.
+     */
+    protected void performAction(SimulatedMachine machine, int action, long millis) throws SimulatorFault {
+        machine.begin(action);
+        try {
+            pause(millis);
+        } finally {
+            machine.end(action);
+        }
+        if ((action == SimulatedMachine.ACTION_ON || action == SimulatedMachine.ACTION_RESUME
+                || action == SimulatedMachine.ACTION_RESET || action == SimulatedMachine.ACTION_REVERT)
+                && chaos.stuck()) {
+            count(injected, "stuck");
+            machine.setStatus(SimulatedMachine.STATUS_STUCK);
+        }
+    }
+
+    private SimulatedConfiguration configuration(Map<String, String> p, String param) throws SimulatorFault {
+        int id = intParam(p, param);
+        SimulatedConfiguration c = lab.getConfiguration(id);
+        if (c == null)
+            throw SimulatorFault.sender("Configuration " + id + " not found");
+        return c;
+    }
+
+    private SimulatedMachine machine(Map<String, String> p) throws SimulatorFault {
+        int id = intParam(p, "machineId");
+        SimulatedMachine m = lab.getMachine(id);
+        if (m == null)
+            throw SimulatorFault.sender("Machine " + id + " not found");
+        return m;
+    }
+
+    private static int intParam(Map<String, String> p, String name) throws SimulatorFault {
+        String value = p.get(name);
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (RuntimeException e) {
+            throw SimulatorFault.sender("Invalid value for " + name + ": " + value);
+        }
+    }
+
+    private static void element(StringBuilder sb, String name, String value) {
+        if (value == null)
+            return;
+        sb.append('<').append(name).append('>').append(escape(value)).append("</").append(name).append('>');
+    }
+
+    private static void configuration(StringBuilder sb, String element, SimulatedConfiguration c, String owner) {
+        sb.append('<').append(element).append('>');
+        element(sb, "id", String.valueOf(c.getId()));
+        element(sb, "name", c.getName());
+        element(sb, "description", "Simulated configuration");
+        element(sb, "isPublic", String.valueOf(c.isPublic()));
+        element(sb, "isDeployed", String.valueOf(c.isDeployed()));
+        element(sb, "fenceMode", "1");
+        element(sb, "type", "1");
+        element(sb, "owner", owner);
+        element(sb, "dateCreated", "2011-01-01T00:00:00");
+        element(sb, "autoDeleteInMilliSeconds", "0");
+        element(sb, "bucketName", c.getWorkspace());
+        element(sb, "mustBeFenced", "NotSpecified");
+        element(sb, "autoDeleteDateTime", "0001-01-01T00:00:00");
+        sb.append("</").append(element).append('>');
+    }
+
+    private static void machine(StringBuilder sb, String element, SimulatedMachine m, String owner) {
+        int id = m.getId();
+        sb.append('<').append(element).append('>');
+        element(sb, "id", String.valueOf(id));
+        element(sb, "name", m.getName());
+        element(sb, "description", "Simulated machine");
+        element(sb, "internalIP", "10.0." + (id / 250 % 250) + '.' + (id % 250 + 1));
+        element(sb, "externalIP", "172.16." + (id / 250 % 250) + '.' + (id % 250 + 1));
+        element(sb, "macAddress", String.format("00:50:56:%02x:%02x:%02x", (id >> 16) & 0xff, (id >> 8) & 0xff, id & 0xff));
+        element(sb, "memory", "2048");
+        element(sb, "status", String.valueOf(m.getStatus()));
+        element(sb, "isDeployed", "true");
+        element(sb, "configID", String.valueOf(m.getConfigurationId()));
+        element(sb, "DatastoreNameResidesOn", "datastore1");
+        element(sb, "HostNameDeployedOn", "esx" + (id % 8 + 1) + ".example.com");
+        element(sb, "OwnerFullName", owner);
+        sb.append("</").append(element).append('>');
+    }
+
+    static String envelope(boolean soap12, String body) {
+        return "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+                + "<soap:Envelope xmlns:soap=\"" + (soap12 ? SOAP12_NAMESPACE : SOAP11_NAMESPACE) + "\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+                + " xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<soap:Body>" + body + "</soap:Body></soap:Envelope>";
+    }
+
+    static String fault(boolean soap12, SimulatorFault f) {
+        String reason = escape(f.getMessage());
+        if (soap12)
+            return envelope(true, "<soap:Fault><soap:Code><soap:Value>"
+                    + (f.isSender() ? "soap:Sender" : "soap:Receiver") + "</soap:Value></soap:Code>"
+                    + "<soap:Reason><soap:Text xml:lang=\"en\">" + reason + "</soap:Text></soap:Reason>"
+                    + "</soap:Fault>");
+        return envelope(false, "<soap:Fault><faultcode>" + (f.isSender() ? "soap:Client" : "soap:Server")
+                + "</faultcode><faultstring>" + reason + "</faultstring></soap:Fault>");
+    }
+
+    /**
+     * Write a response.
+     * @param bytesPerSecond How fast to send it, or 0 for as fast as we can.
+     */
+    protected void send(HttpExchange exchange, boolean soap12, int status, String response,
+                    int bytesPerSecond) throws IOException {
+        byte[] bytes = response.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type",
+                (soap12 ? "application/soap+xml" : "text/xml") + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            if (bytesPerSecond <= 0) {
+                out.write(bytes);
+            } else {
+                /* Send a chunk every 100ms. */
+                int chunk = Math.max(1, bytesPerSecond / 10);
+                for (int off = 0; off < bytes.length; off += chunk) {
+                    out.write(bytes, off, Math.min(chunk, bytes.length - off));
+                    out.flush();
+                    pause(100);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static String escape(String s) {
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String r;
+            switch (c) {
+                case '&': r = "&amp;"; break;
+                case '<': r = "&lt;"; break;
+                case '>': r = "&gt;"; break;
+                case '"': r = "&quot;"; break;
+                default: r = null; break;
+            }
+            if (r == null) {
+                if (sb != null)
+                    sb.append(c);
+            } else {
+                if (sb == null)
+                    sb = new StringBuilder(s.length() + 16).append(s, 0, i);
+                sb.append(r);
+            }
+        }
+        return sb == null ? s : sb.toString();
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1)
+            out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    /**
+     * Find the caller's session from its cookie, starting a new one if it
+     * has none or one we don't know.
+     */
+    private Session session(HttpExchange exchange) {
+        String cookies = exchange.getRequestHeaders().getFirst("Cookie");
+        if (cookies != null) {
+            for (String cookie : cookies.split(";")) {
+                int eq = cookie.indexOf('=');
+                if (eq > 0 && SESSION_COOKIE.equals(cookie.substring(0, eq).trim())) {
+                    Session s = sessions.get(cookie.substring(eq + 1).trim());
+                    if (s != null)
+                        return s;
+                }
+            }
+        }
+        String id = UUID.randomUUID().toString().replace("-", "");
+        Session s = new Session();
+        sessions.put(id, s);
+        exchange.getResponseHeaders().add("Set-Cookie", SESSION_COOKIE + '=' + id + "; path=/; HttpOnly");
+        return s;
+    }
+
+    /**
+     * Forget every session, as a restarted server would; callers must bind
+     * their organization and workspace again.
+     */
+    public void resetSessions() {
+        sessions.clear();
+    }
+
+    /**
+     * The organization and workspace a caller has bound.
+     */
+    protected static final class Session {
+        private String organization;
+        private String workspace;
+
+        synchronized void bind(String organization, String workspace) {
+            this.organization = organization;
+            this.workspace = workspace;
+        }
+
+        synchronized String getOrganization() {
+            return organization;
+        }
+
+        synchronized String getWorkspace() {
+            return workspace;
+        }
+
+        /**
+         * @param name The name to look for, or null for all.
+         */
+        synchronized List<SimulatedConfiguration> find(SimulatedLab lab, String name) {
+            return lab.getConfigurations(organization, workspace, name);
+        }
+    }
+
+    /**
+     * The operation, parameters and credentials of a request.
+     */
+    protected static final class SoapRequest {
+        final String operation;
+        final Map<String, String> params;
+        final String username;
+        final String password;
+
+        SoapRequest(String operation, Map<String, String> params, String username, String password) {
+            this.operation = operation;
+            this.params = params;
+            this.username = username;
+            this.password = password;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public Map<String, String> getParams() {
+            return params;
+        }
+
+        static SoapRequest parse(byte[] body) throws XMLStreamException {
+            XMLStreamReader reader = XML_INPUT.createXMLStreamReader(new ByteArrayInputStream(body));
+            try {
+                String operation = null;
+                String username = null;
+                String password = null;
+                Map<String, String> params = new HashMap<String, String>();
+                boolean inBody = false;
+                boolean inAuth = false;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.END_ELEMENT) {
+                        if ("AuthenticationHeader".equals(reader.getLocalName()))
+                            inAuth = false;
+                        else if (operation != null && operation.equals(reader.getLocalName()))
+                            break;
+                        continue;
+                    }
+                    if (event != XMLStreamConstants.START_ELEMENT)
+                        continue;
+                    String local = reader.getLocalName();
+                    if ("Body".equals(local)) {
+                        inBody = true;
+                    } else if ("AuthenticationHeader".equals(local)) {
+                        inAuth = true;
+                    } else if (inAuth) {
+                        String text = reader.getElementText();
+                        if ("username".equals(local))
+                            username = text;
+                        else if ("password".equals(local))
+                            password = text;
+                    } else if (inBody && operation == null) {
+                        operation = local;
+                    } else if (operation != null) {
+                        params.put(local, reader.getElementText());
+                    }
+                }
+                if (operation == null)
+                    throw new XMLStreamException("No operation in the SOAP body");
+                return new SoapRequest(operation, params, username, password);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Run a simulator until killed.
+     *
+     * <pre>
+     * --port N              port to listen on, 0 for any (default 8080)
+     * --user NAME:PASSWORD  the user to accept (default jenkins:jenkins)
+     * --organization NAME   (default Jenkins)
+     * --configuration NAME  (default Slaves)
+     * --machines N          machines in the configuration (default 20)
+     * --latency OP=SPEC     latency of an operation, or "default"
+     * --action-latency N=SPEC  latency of machine action N
+     * --chaos PROFILE       a stock chaos profile or a spec, see ChaosProfile
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        int port = 8080;
+        String user = "jenkins:jenkins";
+        String organization = "Jenkins";
+        String configuration = "Slaves";
+        int machines = 20;
+        Map<String, String> latency = new HashMap<String, String>();
+        Map<String, String> actionLatency = new HashMap<String, String>();
+        String chaos = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + arg);
+            String value = args[++i];
+            if ("--port".equals(arg))
+                port = Integer.parseInt(value);
+            else if ("--user".equals(arg))
+                user = value;
+            else if ("--organization".equals(arg))
+                organization = value;
+            else if ("--configuration".equals(arg))
+                configuration = value;
+            else if ("--machines".equals(arg))
+                machines = Integer.parseInt(value);
+            else if ("--latency".equals(arg))
+                latency.put(value.substring(0, value.indexOf('=')), value.substring(value.indexOf('=') + 1));
+            else if ("--action-latency".equals(arg))
+                actionLatency.put(value.substring(0, value.indexOf('=')), value.substring(value.indexOf('=') + 1));
+            else if ("--chaos".equals(arg))
+                chaos = value;
+            else
+                throw new IllegalArgumentException("Unknown option " + arg);
+        }
+        int colon = user.indexOf(':');
+        SimulatedLab lab = SimulatedLab.create(user.substring(0, colon), user.substring(colon + 1),
+                organization, configuration, machines);
+        LabManagerSimulator simulator = new LabManagerSimulator(lab);
+        for (Map.Entry<String, String> e : latency.entrySet()) {
+            if ("default".equals(e.getKey()))
+                simulator.setDefaultLatency(LatencyDistribution.parse(e.getValue()));
+            else
+                simulator.setLatency(e.getKey(), LatencyDistribution.parse(e.getValue()));
+        }
+        for (Map.Entry<String, String> e : actionLatency.entrySet())
+            simulator.setActionLatency(Integer.parseInt(e.getKey()), LatencyDistribution.parse(e.getValue()));
+        if (chaos != null)
+            simulator.setChaosProfile(ChaosProfile.named(chaos));
+        simulator.start(new InetSocketAddress(port));
+        System.out.println("Lab Manager simulator listening at " + simulator.getUrl() + SERVICE_PATH);
+        new CountDownLatch(1).await();
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.simulator;
+
+import java.util.Random;
+
+/**
+ * How long the simulator takes to answer an operation, in milliseconds.
+ *
+ * Distributions can be written as text, for the command line and
+ * properties files:
+ * <ul>
+ * <li><tt>fixed:50</tt>, always 50ms;</li>
+ * <li><tt>uniform:20-200</tt>, anywhere from 20 to 200ms;</li>
+ * <li><tt>lognormal:100,800</tt>, a median of 100ms with 1 call in 100
+ * taking 800ms or more, which is roughly how a loaded server behaves.</li>
+ * </ul>
+ */
+public abstract class LatencyDistribution {
+    public static final LatencyDistribution NONE = fixed(0);
+
+    /**
+     * @return A delay, in milliseconds.
+     */
+    public abstract long sample(Random random);
+
+    public static LatencyDistribution fixed(final long millis) {
+        return new LatencyDistribution() {
+            @Override
+            public long sample(Random random) {
+                return millis;
+            }
+
+            @Override
+            public String toString() {
+                return "fixed:" + millis;
+            }
+        };
+    }
+
+    public static LatencyDistribution uniform(final long min, final long max) {
+        if (max < min)
+            throw new IllegalArgumentException("uniform latency from " + min + " to " + max);
+        return new LatencyDistribution() {
+            @Override
+            public long sample(Random random) {
+                return min + (long) (random.nextDouble() * (max - min));
+            }
+
+            @Override
+            public String toString() {
+                return "uniform:" + min + '-' + max;
+            }
+        };
+    }
+
+    /**
+     * @param median Half the calls take less than this.
+     * @param p99 One call in a hundred takes longer than this.
+     */
+    public static LatencyDistribution logNormal(final long median, final long p99) {
+        if (median <= 0 || p99 < median)
+            throw new IllegalArgumentException("lognormal latency with median " + median + " and p99 " + p99);
+        final double mu = Math.log(median);
+        /* 2.326 is the 99th percentile of the standard normal. */
+        final double sigma = Math.log((double) p99 / median) / 2.326;
+        return new LatencyDistribution() {
+            @Override
+            public long sample(Random random) {
+                return Math.round(Math.exp(mu + sigma * random.nextGaussian()));
+            }
+
+            @Override
+            public String toString() {
+                return "lognormal:" + median + ',' + p99;
+            }
+        };
+    }
+
+    /**
+     * Read a distribution written as described above.  A bare number is
+     * a fixed latency.
+     */
+    public static LatencyDistribution parse(String spec) {
+        String s = spec.trim();
+        int colon = s.indexOf(':');
+        String kind = colon < 0 ? "fixed" : s.substring(0, colon).trim();
+        String args = colon < 0 ? s : s.substring(colon + 1).trim();
+        try {
+            if ("fixed".equals(kind))
+                return fixed(Long.parseLong(args));
+            if ("uniform".equals(kind)) {
+                int dash = args.indexOf('-');
+                return uniform(Long.parseLong(args.substring(0, dash).trim()),
+                        Long.parseLong(args.substring(dash + 1).trim()));
+            }
+            if ("lognormal".equals(kind)) {
+                int comma = args.indexOf(',');
+                return logNormal(Long.parseLong(args.substring(0, comma).trim()),
+                        Long.parseLong(args.substring(comma + 1).trim()));
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Bad latency: " + spec, e);
+        }
+        throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+    }
+}
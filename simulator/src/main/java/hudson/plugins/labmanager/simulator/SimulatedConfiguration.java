@@ -0,0 +1,93 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.simulator;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A configuration in a simulated workspace, and its machines.
+ */
+public final class SimulatedConfiguration {
+    private final int id;
+    private final String name;
+    private final String organization;
+    private final String workspace;
+    private final List<SimulatedMachine> machines = new CopyOnWriteArrayList<SimulatedMachine>();
+    private volatile boolean deployed = true;
+    private volatile boolean isPublic;
+
+    SimulatedConfiguration(int id, String name, String organization, String workspace) {
+        this.id = id;
+        this.name = name;
+        this.organization = organization;
+        this.workspace = workspace;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getOrganization() {
+        return organization;
+    }
+
+    public String getWorkspace() {
+        return workspace;
+    }
+
+    public List<SimulatedMachine> getMachines() {
+        return machines;
+    }
+
+    void addMachine(SimulatedMachine machine) {
+        machines.add(machine);
+    }
+
+    public SimulatedMachine getMachineByName(String machineName) {
+        for (SimulatedMachine m : machines) {
+            if (m.getName().equals(machineName))
+                return m;
+        }
+        return null;
+    }
+
+    public boolean isDeployed() {
+        return deployed;
+    }
+
+    void setDeployed(boolean deployed) {
+        this.deployed = deployed;
+    }
+
+    public boolean isPublic() {
+        return isPublic;
+    }
+
+    void setPublic(boolean isPublic) {
+        this.isPublic = isPublic;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + id + ", " + machines.size() + " machines)";
+    }
+}
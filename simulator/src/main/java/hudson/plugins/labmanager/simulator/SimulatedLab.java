@@ -0,0 +1,150 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.simulator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What the simulator knows about: users, organizations and their
+ * workspaces, and the configurations and machines in them.
+ */
+public final class SimulatedLab {
+    private final ConcurrentMap<String, String> users = new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String, Set<String>> workspaces = new ConcurrentHashMap<String, Set<String>>();
+    private final ConcurrentMap<Integer, SimulatedConfiguration> configurations = new ConcurrentHashMap<Integer, SimulatedConfiguration>();
+    private final ConcurrentMap<Integer, SimulatedMachine> machines = new ConcurrentHashMap<Integer, SimulatedMachine>();
+    private final AtomicInteger nextConfigurationId = new AtomicInteger(1000);
+    private final AtomicInteger nextMachineId = new AtomicInteger(5000);
+
+    /**
+     * @return A lab with one user, one organization with a "main"
+     * workspace, and one configuration of the given number of machines,
+     * all of them off.
+     */
+    public static SimulatedLab create(String username, String password, String organization,
+                    String configuration, int machineCount) {
+        SimulatedLab lab = new SimulatedLab();
+        lab.addUser(username, password);
+        lab.addWorkspace(organization, "main");
+        lab.addConfiguration(organization, "main", configuration, "vm", machineCount, SimulatedMachine.STATUS_OFF);
+        return lab;
+    }
+
+    public void addUser(String username, String password) {
+        users.put(username, password);
+    }
+
+    public void addWorkspace(String organization, String workspace) {
+        Set<String> set = workspaces.get(organization);
+        if (set == null) {
+            Set<String> created = new CopyOnWriteArraySet<String>();
+            set = workspaces.putIfAbsent(organization, created);
+            if (set == null)
+                set = created;
+        }
+        set.add(workspace);
+    }
+
+    /**
+     * Add a configuration whose machines are called prefix1, prefix2 and
+     * so on.
+     */
+    public SimulatedConfiguration addConfiguration(String organization, String workspace, String name,
+                    String machinePrefix, int machineCount, int status) {
+        addWorkspace(organization, workspace);
+        SimulatedConfiguration c = new SimulatedConfiguration(nextConfigurationId.incrementAndGet(), name,
+                organization, workspace);
+        for (int i = 1; i <= machineCount; i++)
+            addMachine(c, machinePrefix + i, status);
+        configurations.put(Integer.valueOf(c.getId()), c);
+        return c;
+    }
+
+    public SimulatedMachine addMachine(SimulatedConfiguration configuration, String name, int status) {
+        SimulatedMachine m = new SimulatedMachine(nextMachineId.incrementAndGet(), name,
+                configuration.getId(), status);
+        configuration.addMachine(m);
+        machines.put(Integer.valueOf(m.getId()), m);
+        return m;
+    }
+
+    /**
+     * Copy a configuration into a workspace, as a clone or checkout does.
+     */
+    SimulatedConfiguration copy(SimulatedConfiguration from, String workspace, String name) {
+        SimulatedConfiguration c = new SimulatedConfiguration(nextConfigurationId.incrementAndGet(), name,
+                from.getOrganization(), workspace);
+        for (SimulatedMachine m : from.getMachines())
+            addMachine(c, m.getName(), SimulatedMachine.STATUS_OFF);
+        configurations.put(Integer.valueOf(c.getId()), c);
+        return c;
+    }
+
+    void remove(SimulatedConfiguration configuration) {
+        configurations.remove(Integer.valueOf(configuration.getId()));
+        for (SimulatedMachine m : configuration.getMachines())
+            machines.remove(Integer.valueOf(m.getId()));
+    }
+
+    public boolean authenticate(String username, String password) {
+        String expected = username == null ? null : users.get(username);
+        return expected != null && expected.equals(password);
+    }
+
+    public boolean hasOrganization(String organization) {
+        return organization != null && workspaces.containsKey(organization);
+    }
+
+    public boolean hasWorkspace(String organization, String workspace) {
+        Set<String> set = organization == null ? null : workspaces.get(organization);
+        return set != null && set.contains(workspace);
+    }
+
+    public SimulatedConfiguration getConfiguration(int id) {
+        return configurations.get(Integer.valueOf(id));
+    }
+
+    /**
+     * @param organization The organization to look in, or null for any.
+     * @param workspace The workspace to look in, or null for any.
+     */
+    public List<SimulatedConfiguration> getConfigurations(String organization, String workspace, String name) {
+        List<SimulatedConfiguration> result = new ArrayList<SimulatedConfiguration>();
+        for (SimulatedConfiguration c : configurations.values()) {
+            if ((organization == null || organization.equals(c.getOrganization()))
+                    && (workspace == null || workspace.equals(c.getWorkspace()))
+                    && (name == null || name.equals(c.getName())))
+                result.add(c);
+        }
+        return result;
+    }
+
+    public SimulatedMachine getMachine(int id) {
+        return machines.get(Integer.valueOf(id));
+    }
+
+    public Collection<SimulatedMachine> getMachines() {
+        return machines.values();
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.simulator;
+
+/**
+ * A virtual machine in a simulated configuration.
+ */
+public final class SimulatedMachine {
+    /* Machine status and action codes, see LabManagerVirtualMachineLauncher. */
+    public static final int STATUS_OFF = 1;
+    public static final int STATUS_ON = 2;
+    public static final int STATUS_SUSPENDED = 3;
+    public static final int STATUS_STUCK = 4;
+    public static final int STATUS_INVALID = 128;
+    public static final int ACTION_ON = 1;
+    public static final int ACTION_OFF = 2;
+    public static final int ACTION_SUSPEND = 3;
+    public static final int ACTION_RESUME = 4;
+    public static final int ACTION_RESET = 5;
+    public static final int ACTION_SNAPSHOT = 6;
+    public static final int ACTION_REVERT = 7;
+    public static final int ACTION_SHUTDOWN = 8;
+
+    private final int id;
+    private final String name;
+    private final int configurationId;
+    private int status;
+    /* The status a revert goes back to. */
+    private int snapshotStatus = STATUS_OFF;
+    private boolean busy;
+
+    SimulatedMachine(int id, String name, int configurationId, int status) {
+        this.id = id;
+        this.name = name;
+        this.configurationId = configurationId;
+        this.status = status;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getConfigurationId() {
+        return configurationId;
+    }
+
+    public synchronized int getStatus() {
+        return status;
+    }
+
+    public synchronized void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     * Mark the machine busy with an action, so a second action sent
+     * before the first is done is turned away the way Lab Manager does.
+     */
+    synchronized void begin(int action) throws SimulatorFault {
+        if (busy)
+            throw SimulatorFault.server("Machine " + id + " is busy; another operation is in progress");
+        if (status == STATUS_STUCK || status == STATUS_INVALID)
+            throw SimulatorFault.server("The operation is not allowed in the current state of machine " + id);
+        if (!allowed(action))
+            throw SimulatorFault.sender("The operation is not allowed in the current state of machine " + id);
+        busy = true;
+    }
+
+    /**
+     * Finish an action started with {@link #begin(int)}.
+     */
+    synchronized void end(int action) {
+        busy = false;
+        switch (action) {
+            case ACTION_ON:
+            case ACTION_RESUME:
+            case ACTION_RESET:
+                status = STATUS_ON;
+                break;
+            case ACTION_OFF:
+            case ACTION_SHUTDOWN:
+                status = STATUS_OFF;
+                break;
+            case ACTION_SUSPEND:
+                status = STATUS_SUSPENDED;
+                break;
+            case ACTION_SNAPSHOT:
+                snapshotStatus = status == STATUS_SUSPENDED ? STATUS_SUSPENDED : STATUS_OFF;
+                break;
+            case ACTION_REVERT:
+                status = snapshotStatus;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /* Called with the lock held. */
+    private boolean allowed(int action) {
+        switch (action) {
+            case ACTION_ON:
+            case ACTION_OFF:
+            case ACTION_SNAPSHOT:
+            case ACTION_REVERT:
+                return true;
+            case ACTION_SUSPEND:
+            case ACTION_RESET:
+            case ACTION_SHUTDOWN:
+                return status == STATUS_ON;
+            case ACTION_RESUME:
+                return status == STATUS_SUSPENDED || status == STATUS_ON;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + id + ", status " + getStatus() + ")";
+    }
+}
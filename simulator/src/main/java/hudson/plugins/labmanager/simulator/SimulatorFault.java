@@ -0,0 +1,45 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager.simulator;
+
+/**
+ * A SOAP fault for the simulator to send back.
+ */
+public class SimulatorFault extends Exception {
+    private final boolean sender;
+
+    /**
+     * @param sender Whether the request was at fault, rather than the
+     * server.
+     */
+    public SimulatorFault(boolean sender, String reason) {
+        super(reason);
+        this.sender = sender;
+    }
+
+    public boolean isSender() {
+        return sender;
+    }
+
+    public static SimulatorFault sender(String reason) {
+        return new SimulatorFault(true, reason);
+    }
+
+    public static SimulatorFault server(String reason) {
+        return new SimulatorFault(false, reason);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.util.List;
+
+/**
+ * Implements the by-configuration-name calls of {@link LabManagerClient}
+ * by chaining a configuration lookup into the by-id call.
+ */
+public abstract class AbstractLabManagerClient implements LabManagerClient {
+    /**
+     * Something to do once a configuration has been looked up.
+     */
+    protected interface ConfigurationCall<T> {
+        LabManagerFuture<T> start(int configurationId);
+    }
+
+    public LabManagerFuture<List<LabManagerMachineInfo>> listMachineInfo(String configurationName) {
+        return withConfiguration(configurationName, new ConfigurationCall<List<LabManagerMachineInfo>>() {
+            public LabManagerFuture<List<LabManagerMachineInfo>> start(int configurationId) {
+                return listMachineInfo(configurationId);
+            }
+        });
+    }
+
+    public LabManagerFuture<LabManagerMachineInfo> findMachine(String configurationName, final String name) {
+        return withConfiguration(configurationName, new ConfigurationCall<LabManagerMachineInfo>() {
+            public LabManagerFuture<LabManagerMachineInfo> start(int configurationId) {
+                return findMachine(configurationId, name);
+            }
+        });
+    }
+
+    protected <T> LabManagerFuture<T> withConfiguration(String configurationName,
+                    final ConfigurationCall<T> call) {
+        final LabManagerFuture<T> f = new LabManagerFuture<T>();
+        final LabManagerFuture<Integer> conf = getConfigurationId(configurationName);
+        cancelWith(f, conf);
+        conf.addListener(new Runnable() {
+            public void run() {
+                if (conf.isCancelled()) {
+                    f.cancel(false);
+                    return;
+                }
+                if (conf.getFailure() != null) {
+                    f.setException(conf.getFailure());
+                    return;
+                }
+                Integer id = conf.getNow();
+                if (id == null) {
+                    f.setException(new LabManagerFault(LabManagerFault.Kind.NOT_FOUND, "Configuration not found"));
+                    return;
+                }
+                if (f.isDone())
+                    return;
+                LabManagerFuture<T> next = call.start(id.intValue());
+                cancelWith(f, next);
+                next.forwardTo(f);
+            }
+        });
+        return f;
+    }
+
+    /**
+     * Cancel a call made on behalf of a future once that future is
+     * cancelled, so that giving up on a chained call aborts whichever
+     * step of it is in flight.
+     */
+    protected static void cancelWith(final LabManagerFuture<?> result, final LabManagerFuture<?> call) {
+        result.addListener(new Runnable() {
+            public void run() {
+                if (result.isCancelled())
+                    call.cancel(true);
+            }
+        });
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.util.List;
+
+/**
+ * Sends each call of another client through the cloud's
+ * {@link LabManagerCircuitBreaker} and then its
+ * {@link LabManagerConcurrencyLimiter} at a given priority.  While the
+ * breaker is open calls fail without waiting for the limiter.  Calls that
+ * fail are retried according to the cloud's {@link LabManagerRetryPolicy},
+ * each retry going through the breaker and limiter again.  Slow lookups
+ * may be hedged by the cloud's {@link LabManagerHedgingPolicy}; the hedge
+ * also goes through the breaker and limiter.  Machine actions first wait
+ * for the cloud's {@link LabManagerActionThrottle}.  Failures come back
+ * as a {@link LabManagerFault}, and a call that failed for good a moment
+ * ago fails at once through the cloud's {@link LabManagerFaultCache}.
+ */
+public final class GuardedLabManagerClient extends AbstractLabManagerClient {
+    private final LabManagerClient delegate;
+    private final LabManagerCircuitBreaker breaker;
+    private final LabManagerConcurrencyLimiter limiter;
+    private final LabManagerConcurrencyLimiter.Priority priority;
+    private final LabManagerRetryPolicy retry;
+    private final LabManagerHedgingPolicy hedging;
+    private final LabManagerActionThrottle throttle;
+    private final LabManagerFaultCache faults;
+
+    public GuardedLabManagerClient(LabManagerClient delegate, LabManagerCircuitBreaker breaker,
+                    LabManagerConcurrencyLimiter limiter, LabManagerConcurrencyLimiter.Priority priority,
+                    LabManagerRetryPolicy retry, LabManagerHedgingPolicy hedging,
+                    LabManagerActionThrottle throttle, LabManagerFaultCache faults) {
+        this.delegate = delegate;
+        this.breaker = breaker;
+        this.limiter = limiter;
+        this.priority = priority;
+        this.retry = retry;
+        this.hedging = hedging;
+        this.throttle = throttle;
+        this.faults = faults;
+    }
+
+    private <V> LabManagerCall<V> guard(final LabManagerCall<V> call) {
+        return new LabManagerCall<V>() {
+            public LabManagerFuture<V> start() {
+                return breaker.execute(new LabManagerCall<V>() {
+                    public LabManagerFuture<V> start() {
+                        return limiter.execute(priority, new LabManagerCall<V>() {
+                            public LabManagerFuture<V> start() {
+                                return LabManagerFault.translate(call.start());
+                            }
+                        });
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * @param key What the call asks about, for the fault cache.
+     */
+    private <V> LabManagerFuture<V> read(final String operation, String key, LabManagerCall<V> call) {
+        final LabManagerCall<V> guarded = guard(call);
+        return faults.execute(key, new LabManagerCall<V>() {
+            public LabManagerFuture<V> start() {
+                return retry.read(operation, new LabManagerCall<V>() {
+                    public LabManagerFuture<V> start() {
+                        return hedging.read(operation, guarded);
+                    }
+                });
+            }
+        });
+    }
+
+    public LabManagerFuture<Integer> getConfigurationId(final String configurationName) {
+        return read("getSingleConfigurationByName", "configuration|" + configurationName, new LabManagerCall<Integer>() {
+            public LabManagerFuture<Integer> start() {
+                return found(delegate.getConfigurationId(configurationName), configurationName);
+            }
+        });
+    }
+
+    /**
+     * Fail a configuration lookup that found nothing, so that the failure
+     * is kept by the fault cache.
+     */
+    private static LabManagerFuture<Integer> found(final LabManagerFuture<Integer> id, final String configurationName) {
+        final LabManagerFuture<Integer> f = new LabManagerFuture<Integer>();
+        id.addListener(new Runnable() {
+            public void run() {
+                if (id.getFailure() == null && !id.isCancelled() && id.getNow() == null)
+                    f.setException(new LabManagerFault(LabManagerFault.Kind.NOT_FOUND,
+                            "Configuration " + configurationName + " not found"));
+                else
+                    id.forwardTo(f);
+            }
+        });
+        f.addListener(new Runnable() {
+            public void run() {
+                if (f.isCancelled())
+                    id.cancel(true);
+            }
+        });
+        return f;
+    }
+
+    public LabManagerFuture<List<LabManagerMachineInfo>> listMachineInfo(final int configurationId) {
+        return read("listMachines", "configuration|#" + configurationId, new LabManagerCall<List<LabManagerMachineInfo>>() {
+            public LabManagerFuture<List<LabManagerMachineInfo>> start() {
+                return delegate.listMachineInfo(configurationId);
+            }
+        });
+    }
+
+    public LabManagerFuture<LabManagerMachineInfo> findMachine(final int configurationId, final String name) {
+        /* Stops reading the listing once the machine is found, so its
+         * latency is tracked apart from the full listing's. */
+        return read("findMachine", "configuration|#" + configurationId, new LabManagerCall<LabManagerMachineInfo>() {
+            public LabManagerFuture<LabManagerMachineInfo> start() {
+                return delegate.findMachine(configurationId, name);
+            }
+        });
+    }
+
+    public LabManagerFuture<LabManagerMachineInfo> getMachineInfo(final int machineId) {
+        return read("getMachine", "machine|" + machineId, new LabManagerCall<LabManagerMachineInfo>() {
+            public LabManagerFuture<LabManagerMachineInfo> start() {
+                return delegate.getMachineInfo(machineId);
+            }
+        });
+    }
+
+    public LabManagerFuture<LabManagerMachineInfo> getMachineInfoByName(final int configurationId, final String name) {
+        return read("getMachineByName", "machine|" + configurationId + '|' + name, new LabManagerCall<LabManagerMachineInfo>() {
+            public LabManagerFuture<LabManagerMachineInfo> start() {
+                return delegate.getMachineInfoByName(configurationId, name);
+            }
+        });
+    }
+
+    public LabManagerFuture<Void> machinePerformAction(final int machineId, final int action) {
+        final LabManagerCall<Void> perform = guard(new LabManagerCall<Void>() {
+            public LabManagerFuture<Void> start() {
+                return delegate.machinePerformAction(machineId, action);
+            }
+        });
+        final LabManagerCall<LabManagerMachineInfo> status = guard(new LabManagerCall<LabManagerMachineInfo>() {
+            public LabManagerFuture<LabManagerMachineInfo> start() {
+                return delegate.getMachineInfo(machineId);
+            }
+        });
+        /* Keyed apart from getMachineInfo, so that an action the machine
+         * refuses does not fail the status lookups, nor the other way round. */
+        return faults.execute("action|" + machineId + '|' + action, new LabManagerCall<Void>() {
+            public LabManagerFuture<Void> start() {
+                return throttle.execute(action, new LabManagerCall<Void>() {
+                    public LabManagerFuture<Void> start() {
+                        return retry.action(action, perform, status);
+                    }
+                });
+            }
+        });
+    }
+}
@@ -25,8 +25,11 @@ package hudson.plugins.labmanager;
 import hudson.util.FormValidation;
 import hudson.util.Scrambler;
 import hudson.Util;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
+import hudson.model.Hudson;
 import hudson.model.Label;
+import hudson.model.Node;
 import hudson.Extension;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner;
@@ -37,23 +40,25 @@ import org.kohsuke.stapler.QueryParameter;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.StaplerRequest;
 
-import java.security.Security;
-import java.security.KeyStore;
-import java.security.Provider;
-import java.security.cert.X509Certificate;
-import javax.net.ssl.ManagerFactoryParameters;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactorySpi;
-import javax.net.ssl.X509TrustManager;
+import org.apache.commons.httpclient.protocol.Protocol;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.rmi.RemoteException;
+import java.security.GeneralSecurityException;
 
-import com.vmware.labmanager.*;
-import com.vmware.labmanager.LabManager_x0020_SOAP_x0020_interfaceStub.*;
 
 /**
  * Represents a virtual Lab Manager Organization/Workspace/Configuration
@@ -62,6 +67,8 @@ import com.vmware.labmanager.LabManager_x0020_SOAP_x0020_interfaceStub.*;
  * @author Tom Rini <tom_rini@mentor.com>
  */
 public class LabManager extends Cloud {
+    private static final Logger LOGGER = Logger.getLogger(LabManager.class.getName());
+
     private final String lmHost;
     private final String lmDescription;
     private final String lmOrganization;
@@ -70,19 +77,74 @@ public class LabManager extends Cloud {
     private final String username;
     private final String password;
     private final int maxOnlineSlaves;
+    private final int maxConnectionsPerHost;
+    private final boolean useLightweightClient;
+    private final String trustStorePath;
+    private final String trustStorePassword;
+    /* Timeouts and budgets, in seconds. */
+    private final int readTimeout;
+    private final int actionTimeout;
+    private final int launchTimeout;
+    private final int teardownTimeout;
+    private final boolean hedgeReads;
+    /* Machine actions per minute, 0 for no limit. */
+    private final int powerOnRate;
+    private final int resumeRate;
+    private final int revertRate;
+    private final int shutdownRate;
     private transient int currentOnlineSlaveCount = 0;
     private transient ArrayList currentOnlineSlaves;
 
     /**
-     * Information to connect to Lab Manager and send SOAP requests.
+     * The SOAP stub and the Axis2 context behind it are expensive to build
+     * (each stub populates a new AxisService and ServiceClient) so we build
+     * one context per cloud and one stub per host, held by that host's
+     * client, and send every call through it.  Nothing here is built, and none of the Axis2
+     * classes are loaded, until the first call.  The stub
+     * creates a new OperationClient for each call, so sharing it between
+     * threads is safe.  Changing the cloud configuration creates a new
+     * LabManager object and therefore a new stub.
      */
-    private AuthenticationHeaderE lmAuth = null;
+    private transient LabManagerStubFactory lmStubFactory;
+    /* One per host listed in lmHost, each with its stub or lightweight
+     * client. */
+    private transient volatile List<LabManagerEndpoint> lmEndpoints;
+    private transient volatile LabManagerEndpointRouter lmRouter;
+    private transient LabManagerMetrics metrics = new LabManagerMetrics();
+    private transient LabManagerSingleFlight<List<LabManagerMachineInfo>> machineLists = new LabManagerSingleFlight<List<LabManagerMachineInfo>>(metrics, "listMachines.coalesced");
+    private transient AtomicInteger findsInFlight = new AtomicInteger();
+    private transient LabManagerConcurrencyLimiter limiter;
+    private transient LabManagerCircuitBreaker breaker;
+    private transient LabManagerRetryPolicy retryPolicy;
+    private transient LabManagerLatencyTracker latencies;
+    private transient LabManagerHedgingPolicy hedgingPolicy;
+    private transient LabManagerActionThrottle actionThrottle;
+    private transient LabManagerFaultCache faultCache;
+    /* The last machine list we got, for the UI to fall back on while
+     * Lab Manager is unreachable. */
+    private transient volatile List<LabManagerMachineInfo> lastInventory;
+    /* Guards the lazy setup above.  Per cloud, so one cloud loading its
+     * truststore or building its Axis2 context does not hold up another. */
+    private transient Object stubLock = new Object();
+
+    /* Used when a timeout is not set, for example when the cloud was
+     * saved by an older version of the plugin. */
+    public static final int DEFAULT_READ_TIMEOUT = 60;
+    public static final int DEFAULT_ACTION_TIMEOUT = 600;
+    public static final int DEFAULT_LAUNCH_TIMEOUT = 900;
+    public static final int DEFAULT_TEARDOWN_TIMEOUT = 900;
 
     @DataBoundConstructor
     public LabManager(String lmHost, String lmDescription,
                     String lmOrganization, String lmWorkspace,
                     String lmConfiguration, String username,
-                    String password, int maxOnlineSlaves) {
+                    String password, int maxOnlineSlaves,
+                    int maxConnectionsPerHost, boolean useLightweightClient,
+                    String trustStorePath, String trustStorePassword,
+                    int readTimeout, int actionTimeout,
+                    int launchTimeout, int teardownTimeout,
+                    boolean hedgeReads, int powerOnRate, int resumeRate,
+                    int revertRate, int shutdownRate) {
         super("LabManager");
         this.lmHost = lmHost;
         this.lmDescription = lmDescription;
@@ -95,21 +157,44 @@ public class LabManager extends Cloud {
         this.username = username;
         this.password = Scrambler.scramble(Util.fixEmptyAndTrim(password));
         this.maxOnlineSlaves = maxOnlineSlaves;
-        /* Setup our auth token. */
-        AuthenticationHeader ah = new AuthenticationHeader();
-        ah.setUsername(username);
-        ah.setPassword(password);
-        this.lmAuth = new AuthenticationHeaderE();
-        this.lmAuth.setAuthenticationHeader(ah);
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.useLightweightClient = useLightweightClient;
+        this.trustStorePath = Util.fixEmptyAndTrim(trustStorePath);
+        this.trustStorePassword = Scrambler.scramble(Util.fixEmptyAndTrim(trustStorePassword));
+        this.readTimeout = readTimeout;
+        this.actionTimeout = actionTimeout;
+        this.launchTimeout = launchTimeout;
+        this.teardownTimeout = teardownTimeout;
+        this.hedgeReads = hedgeReads;
+        this.powerOnRate = powerOnRate;
+        this.resumeRate = resumeRate;
+        this.revertRate = revertRate;
+        this.shutdownRate = shutdownRate;
+        this.limiter = new LabManagerConcurrencyLimiter(metrics, getMaxConnectionsPerHost());
+        this.breaker = new LabManagerCircuitBreaker(lmHost, metrics);
+        this.retryPolicy = new LabManagerRetryPolicy(metrics);
+        this.latencies = new LabManagerLatencyTracker();
+        this.hedgingPolicy = new LabManagerHedgingPolicy(latencies, metrics, hedgeReads);
+        this.actionThrottle = new LabManagerActionThrottle(metrics, powerOnRate, resumeRate, revertRate, shutdownRate);
+        this.faultCache = new LabManagerFaultCache(metrics);
     }
 
-    /* This is something that we need to make sure
-     * happens when Hudson is restarted for example. */
-    private void fixTrustManager() {
-        /* Install the all-trusting trust manager */
-        Security.addProvider( new DummyTrustProvider() );
-        Security.setProperty("ssl.TrustManagerFactory.algorithm",
-            "TrustAllCertificates");
+    /**
+     * Set up our transient state when we are loaded from disk.
+     */
+    protected Object readResolve() {
+        stubLock = new Object();
+        metrics = new LabManagerMetrics();
+        machineLists = new LabManagerSingleFlight<List<LabManagerMachineInfo>>(metrics, "listMachines.coalesced");
+        findsInFlight = new AtomicInteger();
+        limiter = new LabManagerConcurrencyLimiter(metrics, getMaxConnectionsPerHost());
+        breaker = new LabManagerCircuitBreaker(lmHost, metrics);
+        retryPolicy = new LabManagerRetryPolicy(metrics);
+        latencies = new LabManagerLatencyTracker();
+        hedgingPolicy = new LabManagerHedgingPolicy(latencies, metrics, hedgeReads);
+        actionThrottle = new LabManagerActionThrottle(metrics, powerOnRate, resumeRate, revertRate, shutdownRate);
+        faultCache = new LabManagerFaultCache(metrics);
+        return this;
     }
 
     public String getLmHost() {
@@ -144,6 +229,123 @@ public class LabManager extends Cloud {
         return maxOnlineSlaves;
     }
 
+    public int getMaxConnectionsPerHost() {
+        if (maxConnectionsPerHost <= 0)
+            return LabManagerConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+        return maxConnectionsPerHost;
+    }
+
+    public boolean getUseLightweightClient() {
+        return useLightweightClient;
+    }
+
+    public String getTrustStorePath() {
+        return trustStorePath;
+    }
+
+    public String getTrustStorePassword() {
+        return Scrambler.descramble(trustStorePassword);
+    }
+
+    /**
+     * @return How long, in seconds, to wait for a lookup such as
+     * listMachines.
+     */
+    public int getReadTimeout() {
+        return readTimeout > 0 ? readTimeout : DEFAULT_READ_TIMEOUT;
+    }
+
+    /**
+     * @return How long, in seconds, to wait for machinePerformAction.
+     */
+    public int getActionTimeout() {
+        return actionTimeout > 0 ? actionTimeout : DEFAULT_ACTION_TIMEOUT;
+    }
+
+    /**
+     * @return The time, in seconds, that a launch may spend talking to
+     * Lab Manager.
+     */
+    public int getLaunchTimeout() {
+        return launchTimeout > 0 ? launchTimeout : DEFAULT_LAUNCH_TIMEOUT;
+    }
+
+    /**
+     * @return The time, in seconds, that a teardown may spend talking to
+     * Lab Manager.
+     */
+    public int getTeardownTimeout() {
+        return teardownTimeout > 0 ? teardownTimeout : DEFAULT_TEARDOWN_TIMEOUT;
+    }
+
+    public boolean getHedgeReads() {
+        return hedgeReads;
+    }
+
+    /**
+     * @return How many machines may be powered on per minute, 0 for no
+     * limit.
+     */
+    public int getPowerOnRate() {
+        return powerOnRate;
+    }
+
+    public int getResumeRate() {
+        return resumeRate;
+    }
+
+    public int getRevertRate() {
+        return revertRate;
+    }
+
+    public int getShutdownRate() {
+        return shutdownRate;
+    }
+
+    public LabManagerDeadline newLaunchDeadline() {
+        return new LabManagerDeadline("launch", LabManagerConcurrencyLimiter.Priority.LAUNCH, metrics, getLaunchTimeout() * 1000L);
+    }
+
+    public LabManagerDeadline newTeardownDeadline() {
+        return new LabManagerDeadline("teardown", LabManagerConcurrencyLimiter.Priority.TEARDOWN, metrics, getTeardownTimeout() * 1000L);
+    }
+
+    public LabManagerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public LabManagerConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    public LabManagerCircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * @return Our counters along with the state of our circuit breaker,
+     * concurrency limiter, retry budgets, lookup latencies, action queues,
+     * endpoints and connection pools.
+     */
+    public Map<String, Long> getMetricsSnapshot() {
+        Map<String, Long> snapshot = metrics.snapshot();
+        breaker.addMetrics(snapshot);
+        limiter.addMetrics(snapshot);
+        retryPolicy.addMetrics(snapshot);
+        latencies.addMetrics(snapshot);
+        actionThrottle.addMetrics(snapshot);
+        faultCache.addMetrics(snapshot);
+        List<LabManagerEndpoint> endpoints = lmEndpoints;
+        if (endpoints != null) {
+            for (LabManagerEndpoint e : endpoints)
+                e.getPool().addMetrics(snapshot);
+        }
+        LabManagerEndpointRouter router = lmRouter;
+        if (router != null)
+            router.addMetrics(snapshot);
+        return snapshot;
+    }
+
     /**
      * @param vmName The name of the slave we're bringing online.
      */
@@ -165,45 +367,293 @@ public class LabManager extends Cloud {
             return currentOnlineSlaveCount;
     }
 
-    public LabManager_x0020_SOAP_x0020_interfaceStub getLmStub() {
-        /* Make sure the trust manager is right. */
-        fixTrustManager();
+    /**
+     * @return The Lab Manager hosts entered in the cloud, which may list
+     * several separated by commas or spaces.
+     */
+    public List<String> getLmHosts() {
+        return parseHosts(lmHost);
+    }
+
+    private static List<String> parseHosts(String lmHost) {
+        List<String> hosts = new ArrayList<String>();
+        for (String h : lmHost.trim().split("[,\\s]+")) {
+            if (h.length() != 0)
+                hosts.add(h);
+        }
+        return hosts;
+    }
+
+    /**
+     * Return the Lab Manager hosts we talk to, each with its own
+     * connection pool, session and client, building them on first use.
+     */
+    public List<LabManagerEndpoint> getEndpoints() {
+        List<LabManagerEndpoint> endpoints = lmEndpoints;
+        if (endpoints != null)
+            return endpoints;
+
+        synchronized (stubLock) {
+            if (lmEndpoints == null) {
+                List<LabManagerEndpoint> created = new ArrayList<LabManagerEndpoint>();
+                for (String host : getLmHosts()) {
+                    LabManagerConnectionPool pool = LabManagerConnectionPool.forHost(host, getMaxConnectionsPerHost());
+                    /* Built once per host so that every connection to it
+                     * shares one SSLContext, and with it the TLS session
+                     * cache. */
+                    Protocol protocol = createProtocol(host, trustStorePath, getTrustStorePassword());
+                    LabManagerSession session = null;
+                    if (Util.fixEmptyAndTrim(lmOrganization) != null)
+                        session = pool.getSession(lmOrganization, lmWorkspace, username);
+                    created.add(new LabManagerEndpoint(host, pool, protocol, session,
+                            createClient(host, pool, protocol, session)));
+                }
+                lmEndpoints = Collections.unmodifiableList(created);
+            }
+            return lmEndpoints;
+        }
+    }
 
-        LabManager_x0020_SOAP_x0020_interfaceStub lmStub = null;
+    /**
+     * Build the client that the cloud was configured to use for one host.
+     * The lightweight client writes its own SOAP requests and never builds
+     * the Axis2 stub.
+     */
+    private LabManagerClient createClient(String host, LabManagerConnectionPool pool,
+                    Protocol protocol, LabManagerSession session) {
+        if (!useLightweightClient)
+            return getStubFactory().createClient(host, pool, protocol, session, username, getPassword(),
+                    getReadTimeout() * 1000L, getCallTimeout());
         try {
-            lmStub = new LabManager_x0020_SOAP_x0020_interfaceStub(lmHost + "/LabManager/SOAP/LabManager.asmx");
-        } catch (Exception e) {
+            return new LightweightLabManagerClient(host + LabManagerStubFactory.SERVICE_PATH,
+                    pool, protocol, username, getPassword(),
+                    getReadTimeout() * 1000L, getActionTimeout() * 1000L, session);
+        } catch (MalformedURLException e) {
             throw new RuntimeException(e);
         }
+    }
 
-        return lmStub;
+    private LabManagerStubFactory getStubFactory() {
+        synchronized (stubLock) {
+            if (lmStubFactory == null)
+                lmStubFactory = new LabManagerStubFactory();
+            return lmStubFactory;
+        }
+    }
+
+    /**
+     * @return The longest, in milliseconds, that any one call may take.
+     */
+    private long getCallTimeout() {
+        return Math.max(getReadTimeout(), getActionTimeout()) * 1000L;
+    }
+
+    private static Protocol createProtocol(String lmHost, String trustStorePath, String trustStorePassword) {
+        try {
+            URL url = new URL(lmHost);
+            if (!"https".equalsIgnoreCase(url.getProtocol()))
+                return null;
+            return LabManagerSSLSocketFactory.create(trustStorePath, trustStorePassword).getProtocol(url);
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Return a client for calls made on behalf of the UI or anything else
+     * that is neither a launch nor a teardown.
+     */
+    public LabManagerClient getClient() {
+        return getClient(LabManagerConcurrencyLimiter.Priority.NORMAL);
+    }
+
+    /**
+     * Return a client whose calls go through our circuit breaker, retry
+     * and hedging policies and concurrency limiter, the latter at the
+     * given priority, and whose machine actions are throttled.  Calls
+     * that failed for good a moment ago fail at once.
+     */
+    public LabManagerClient getClient(LabManagerConcurrencyLimiter.Priority priority) {
+        return new GuardedLabManagerClient(getTransportClient(), breaker, limiter, priority, retryPolicy,
+                hedgingPolicy, actionThrottle, faultCache);
+    }
+
+    /**
+     * Return the client for our only host, or one that routes each call
+     * to the best of our hosts.
+     */
+    private LabManagerClient getTransportClient() {
+        List<LabManagerEndpoint> endpoints = getEndpoints();
+        if (endpoints.size() == 1)
+            return endpoints.get(0).getClient();
+        LabManagerEndpointRouter router = lmRouter;
+        if (router == null) {
+            router = new LabManagerEndpointRouter(endpoints, metrics);
+            lmRouter = router;
+        }
+        return router;
+    }
+
+    /**
+     * List the machines in our configuration.  When many slaves launch at
+     * once they all need this list; concurrent callers share a single
+     * in-flight lookup instead of each sending their own.
+     */
+    public LabManagerFuture<List<LabManagerMachineInfo>> listMachines() {
+        return listMachines(LabManagerConcurrencyLimiter.Priority.NORMAL);
     }
 
-    public AuthenticationHeaderE getLmAuth() {
-        return lmAuth;
+    /**
+     * @param priority The priority to start a new lookup at.  A caller
+     * that joins a lookup already in flight shares it at its priority.
+     */
+    public LabManagerFuture<List<LabManagerMachineInfo>> listMachines(LabManagerConcurrencyLimiter.Priority priority) {
+        final LabManagerClient client = getClient(priority);
+        return machineLists.execute(machineListKey(), new LabManagerCall<List<LabManagerMachineInfo>>() {
+            public LabManagerFuture<List<LabManagerMachineInfo>> start() {
+                final LabManagerFuture<List<LabManagerMachineInfo>> f = client.listMachineInfo(lmConfiguration);
+                f.addListener(new Runnable() {
+                    public void run() {
+                        if (f.getFailure() == null && !f.isCancelled())
+                            lastInventory = f.getNow();
+                    }
+                });
+                return f;
+            }
+        });
+    }
+
+    private String machineListKey() {
+        return lmHost + '|' + lmOrganization + '|' + lmWorkspace + '|' + lmConfiguration;
     }
 
-    public synchronized List<LabManagerVirtualMachine> getLabManagerVirtualMachines() {
-        LabManager_x0020_SOAP_x0020_interfaceStub lmStub = getLmStub();
+    /**
+     * Find one machine in our configuration by name.  On its own this
+     * stops reading the machine list as soon as the machine shows up.
+     * When other lookups are already running we share a full listing with
+     * them instead, as one listing is cheaper than many early-stopping ones.
+     * The future completes with null if there is no such machine.
+     */
+    public LabManagerFuture<LabManagerMachineInfo> findMachine(String vmName) {
+        return findMachine(vmName, LabManagerConcurrencyLimiter.Priority.NORMAL);
+    }
+
+    public LabManagerFuture<LabManagerMachineInfo> findMachine(final String vmName,
+                    LabManagerConcurrencyLimiter.Priority priority) {
+        LabManagerFuture<List<LabManagerMachineInfo>> listing = machineLists.peek(machineListKey());
+        if (listing == null && findsInFlight.compareAndSet(0, 1)) {
+            LabManagerFuture<LabManagerMachineInfo> f = getClient(priority).findMachine(lmConfiguration, vmName);
+            f.addListener(new Runnable() {
+                public void run() {
+                    findsInFlight.decrementAndGet();
+                }
+            });
+            return f;
+        }
+
+        metrics.increment("findMachine.sharedListing");
+        if (listing == null)
+            listing = listMachines(priority);
+        final LabManagerFuture<List<LabManagerMachineInfo>> machines = listing;
+        final LabManagerFuture<LabManagerMachineInfo> f = new LabManagerFuture<LabManagerMachineInfo>();
+        machines.addListener(new Runnable() {
+            public void run() {
+                if (machines.isCancelled()) {
+                    f.cancel(false);
+                    return;
+                }
+                if (machines.getFailure() != null) {
+                    f.setException(machines.getFailure());
+                    return;
+                }
+                for (LabManagerMachineInfo m : machines.getNow()) {
+                    if (vmName.equals(m.getName())) {
+                        f.set(m);
+                        return;
+                    }
+                }
+                f.set(null);
+            }
+        });
+        return f;
+    }
+
+    /**
+     * Perform a machine action on many machines in our configuration, with
+     * at most the given number of actions in flight.  The actions still go
+     * through our throttle, limiter, breaker and retry policy.
+     *
+     * @param action The machine action code, see
+     * {@link LabManagerVirtualMachineLauncher}.
+     * @param parallelism The most actions to have in flight at once, or 0
+     * for the default.
+     */
+    public LabManagerFuture<LabManagerBulkOperation.Result> performAction(Collection<String> vmNames,
+                    int action, int parallelism) {
+        final LabManagerFuture<LabManagerBulkOperation.Result> f = LabManagerBulkOperation.start(listMachines(),
+                vmNames, getClient(), action, parallelism);
+        f.addListener(new Runnable() {
+            public void run() {
+                LabManagerBulkOperation.Result r = f.getNow();
+                if (r != null)
+                    LOGGER.log(r.isSuccess() ? Level.INFO : Level.WARNING, "Bulk action on " + lmConfiguration + ": " + r);
+            }
+        });
+        return f;
+    }
+
+    /**
+     * @return The machines of the slaves that use this cloud and are not
+     * running a build.
+     */
+    public List<String> getIdleMachineNames() {
+        List<String> names = new ArrayList<String>();
+        for (Node node : Hudson.getInstance().getNodes()) {
+            if (!(node instanceof LabManagerVirtualMachineSlave))
+                continue;
+            LabManagerVirtualMachineSlave slave = (LabManagerVirtualMachineSlave) node;
+            if (!lmDescription.equals(slave.getLmDescription()))
+                continue;
+            Computer c = slave.toComputer();
+            if (c == null || c.isIdle())
+                names.add(slave.getVmName());
+        }
+        return names;
+    }
+
+    /**
+     * @throws LabManagerFault If the machines could not be listed and we
+     * have no earlier list to fall back on, or the failure was one that an
+     * earlier list would only hide, such as a refused login.
+     */
+    public synchronized List<LabManagerVirtualMachine> getLabManagerVirtualMachines() throws LabManagerFault {
         List<LabManagerVirtualMachine> vmList = new ArrayList<LabManagerVirtualMachine>();
         /* Get the list of machines.  We do this by asking for our
          * configuration and then passing that ID to a request for
          * listMachines.
          */
+        List<LabManagerMachineInfo> machines;
         try {
-            GetSingleConfigurationByName gscbnReq = new GetSingleConfigurationByName();
-            gscbnReq.setName(lmConfiguration);
-            GetSingleConfigurationByNameResponse gscbnResp = lmStub.getSingleConfigurationByName(gscbnReq, lmAuth);
-            ListMachines lmReq = new ListMachines();
-            lmReq.setConfigurationId(gscbnResp.getGetSingleConfigurationByNameResult().getId());
-            ListMachinesResponse lmResp = lmStub.listMachines(lmReq, lmAuth);
-
-            ArrayOfMachine aom = lmResp.getListMachinesResult();
-            for (Machine mach : aom.getMachine())
-                vmList.add(new LabManagerVirtualMachine(this, mach.getName()));
+            machines = listMachines().await(getReadTimeout(), TimeUnit.SECONDS);
         } catch (Exception e) {
-            throw new RuntimeException(e);
+            if (e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            LabManagerFault fault = LabManagerFault.classify(e);
+            /* Lab Manager is down, busy or the circuit breaker is open;
+             * show what we saw last rather than failing the page. */
+            machines = lastInventory;
+            if (machines == null || !fault.isRetryable())
+                throw fault;
+            LOGGER.log(Level.WARNING, "Could not list the machines in " + lmConfiguration
+                    + ", using the last known list", fault);
+            metrics.increment("inventory.fallback");
         }
+        for (LabManagerMachineInfo mach : machines)
+            vmList.add(new LabManagerVirtualMachine(this, mach.getName()));
         return vmList;
     }
 
@@ -273,85 +723,60 @@ public class LabManager extends Cloud {
                 @QueryParameter String lmConfiguration,
                 @QueryParameter String username,
                 @QueryParameter String password,
-                @QueryParameter int maxOnlineSlaves) {
-            try {
-                /* We know that these objects are not null */
-                if (lmHost.length() == 0)
-                    return FormValidation.error("Lab Manager host is not specified");
-                else {
-                    /* Perform other sanity checks. */
-                    if (!lmHost.startsWith("https://"))
-                        return FormValidation.error("Lab Manager host must start with https://");
-                }
-
-                if (lmOrganization.length() == 0)
-                    return FormValidation.error("Lab Manager organization is not specified");
-
-                if (lmConfiguration.length() == 0)
-                    return FormValidation.error("Lab Manager configuration is not specified");
-
-                if (username.length() == 0)
-                    return FormValidation.error("Username is not specified");
-
-                if (password.length() == 0)
-                    return FormValidation.error("Password is not specified");
-
-                /* Install the all-trusting trust manager */
-                Security.addProvider( new DummyTrustProvider() );
-                Security.setProperty("ssl.TrustManagerFactory.algorithm",
-                    "TrustAllCertificates");
-
-                /* Try and connect to it. */
-                LabManager_x0020_SOAP_x0020_interfaceStub stub = new LabManager_x0020_SOAP_x0020_interfaceStub(lmHost + "/LabManager/SOAP/LabManager.asmx");
-                AuthenticationHeader ah = new AuthenticationHeader();
-                ah.setUsername(username);
-                ah.setPassword(password);
-                AuthenticationHeaderE ahe = new AuthenticationHeaderE();
-                ahe.setAuthenticationHeader(ah);
-
-                /* GetCurrentOrganizationName */
-                GetSingleConfigurationByName request = new GetSingleConfigurationByName();
-                request.setName(lmConfiguration);
-                GetSingleConfigurationByNameResponse resp = stub.getSingleConfigurationByName(request, ahe);
-                if (lmConfiguration.equals(resp.getGetSingleConfigurationByNameResult().getName()))
-                    return FormValidation.ok("Connected successfully");
-                else
-                    return FormValidation.error("Could not login and retrieve basic information to confirm setup");
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+                @QueryParameter int maxOnlineSlaves,
+                @QueryParameter String trustStorePath,
+                @QueryParameter String trustStorePassword) {
+            /* We know that these objects are not null */
+            List<String> hosts = parseHosts(lmHost);
+            if (hosts.isEmpty())
+                return FormValidation.error("Lab Manager host is not specified");
+            for (String host : hosts) {
+                /* Perform other sanity checks. */
+                if (!host.startsWith("https://"))
+                    return FormValidation.error("Lab Manager host must start with https://");
             }
-        }
-    }
-
-    /**
-     * This is taken from:
-     * http://knowledgehub.zeus.com/articles/2006/01/03/using_the_control_api_with_java
-     * The following code disables certificate checking.
-     * Use the Security.addProvider and Security.setProperty calls to enable it.
-     **/
-
-    private static class DummyTrustProvider extends Provider {
-        public DummyTrustProvider() {
-            super( "DummyTrustProvider", 1.0, "Trust certificates" );
-            put( "TrustManagerFactory.TrustAllCertificates",
-                MyTrustManagerFactory.class.getName() );
-        }
 
-        protected static class MyTrustManagerFactory extends TrustManagerFactorySpi {
-            public MyTrustManagerFactory() {}
-            protected void engineInit(KeyStore keystore) {}
-            protected void engineInit(ManagerFactoryParameters mgrparams) {}
-            protected TrustManager[] engineGetTrustManagers() {
-                return new TrustManager[] {new MyX509TrustManager()};
+            if (lmOrganization.length() == 0)
+                return FormValidation.error("Lab Manager organization is not specified");
+
+            if (lmConfiguration.length() == 0)
+                return FormValidation.error("Lab Manager configuration is not specified");
+
+            if (username.length() == 0)
+                return FormValidation.error("Username is not specified");
+
+            if (password.length() == 0)
+                return FormValidation.error("Password is not specified");
+
+            /* Try and connect to each of them. */
+            for (String host : hosts) {
+                Protocol protocol = createProtocol(host, Util.fixEmptyAndTrim(trustStorePath),
+                        Util.fixEmptyAndTrim(trustStorePassword));
+                try {
+                    if (!LabManagerStubFactory.testConnection(host, protocol, lmOrganization,
+                            lmWorkspace.length() != 0 ? lmWorkspace : "main", lmConfiguration,
+                            username, password))
+                        return FormValidation.error("Could not login to " + host + " and retrieve basic information to confirm setup");
+                } catch (RemoteException e) {
+                    return FormValidation.error(describe(host, LabManagerFault.classify(e)));
+                }
             }
+            return FormValidation.ok("Connected successfully");
         }
 
-        protected static class MyX509TrustManager implements X509TrustManager {
-
-            public void checkClientTrusted(X509Certificate[] chain, String authType) {}
-            public void checkServerTrusted(X509Certificate[] chain, String authType) {}
-            public X509Certificate[] getAcceptedIssuers() {
-                return null;
+        private static String describe(String host, LabManagerFault fault) {
+            switch (fault.getKind()) {
+                case AUTHENTICATION:
+                    return "Lab Manager at " + host + " did not accept the username or password";
+                case NOT_FOUND:
+                    return "Lab Manager at " + host + " does not know the organization, workspace or configuration: "
+                            + fault.getMessage();
+                case TIMEOUT:
+                    return "Lab Manager at " + host + " did not answer in time";
+                case UNAVAILABLE:
+                    return "Could not reach Lab Manager at " + host + ": " + fault.getMessage();
+                default:
+                    return "Could not login to " + host + ": " + fault.getMessage();
             }
         }
     }
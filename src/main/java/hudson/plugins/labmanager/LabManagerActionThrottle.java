@@ -0,0 +1,232 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Spaces out the machine actions that load the Lab Manager storage, so
+ * that launching many slaves at once does not power them all on in the
+ * same second.
+ *
+ * Power on, resume, revert and shutdown each have a token bucket that
+ * fills at the rate set in the cloud, in actions per minute, and holds up
+ * to {@link #BURST_SECONDS} worth of tokens.  An action that finds no
+ * token waits in a first come, first served queue for its type.  Other
+ * actions, and types without a rate, are not held back.
+ */
+public final class LabManagerActionThrottle {
+    /* Machine action codes, see LabManagerVirtualMachineLauncher. */
+    private static final int MACHINE_ACTION_ON = 1;
+    private static final int MACHINE_ACTION_RESUME = 4;
+    private static final int MACHINE_ACTION_REVERT = 7;
+    private static final int MACHINE_ACTION_SHUTDOWN = 8;
+
+    /* How many seconds of actions may be sent back to back after a quiet
+     * spell. */
+    private static final int BURST_SECONDS = Integer.getInteger(LabManagerActionThrottle.class.getName() + ".burstSeconds", 10);
+
+    private final LabManagerMetrics metrics;
+    private final Bucket on;
+    private final Bucket resume;
+    private final Bucket revert;
+    private final Bucket shutdown;
+
+    /**
+     * The rates are in actions per minute, 0 for no limit.
+     */
+    public LabManagerActionThrottle(LabManagerMetrics metrics, int onRate, int resumeRate,
+                    int revertRate, int shutdownRate) {
+        this.metrics = metrics;
+        this.on = bucket("on", onRate);
+        this.resume = bucket("resume", resumeRate);
+        this.revert = bucket("revert", revertRate);
+        this.shutdown = bucket("shutdown", shutdownRate);
+    }
+
+    private Bucket bucket(String name, int perMinute) {
+        return perMinute > 0 ? new Bucket(name, perMinute) : null;
+    }
+
+    private Bucket bucketFor(int action) {
+        switch (action) {
+            case MACHINE_ACTION_ON:
+                return on;
+            case MACHINE_ACTION_RESUME:
+                return resume;
+            case MACHINE_ACTION_REVERT:
+                return revert;
+            case MACHINE_ACTION_SHUTDOWN:
+                return shutdown;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Start the call once the action's bucket has a token for it.  A call
+     * that is cancelled while it waits gives up its place in the queue.
+     */
+    public <V> LabManagerFuture<V> execute(int action, LabManagerCall<V> call) {
+        Bucket bucket = bucketFor(action);
+        if (bucket == null)
+            return call.start();
+        LabManagerFuture<V> result = new LabManagerFuture<V>();
+        bucket.submit(new Waiter<V>(call, result));
+        return result;
+    }
+
+    /**
+     * Add the number of actions waiting for each type to a metrics
+     * snapshot.
+     */
+    public void addMetrics(Map<String, Long> snapshot) {
+        for (Bucket b : new Bucket[] { on, resume, revert, shutdown }) {
+            if (b != null)
+                snapshot.put("throttle." + b.name + ".queueDepth", Long.valueOf(b.getQueueDepth()));
+        }
+    }
+
+    private static final class Waiter<V> {
+        private final LabManagerCall<V> call;
+        private final LabManagerFuture<V> result;
+        private final long enqueued = System.nanoTime();
+
+        Waiter(LabManagerCall<V> call, LabManagerFuture<V> result) {
+            this.call = call;
+            this.result = result;
+        }
+
+        void start() {
+            if (result.isDone())
+                return;
+            final LabManagerFuture<V> f;
+            try {
+                f = call.start();
+            } catch (RuntimeException e) {
+                result.setException(e);
+                return;
+            }
+            result.addListener(new Runnable() {
+                public void run() {
+                    if (result.isCancelled())
+                        f.cancel(true);
+                }
+            });
+            f.forwardTo(result);
+        }
+    }
+
+    private final class Bucket {
+        private final String name;
+        private final double capacity;
+        /* Tokens per millisecond. */
+        private final double rate;
+        private final Queue<Waiter<?>> queue = new ArrayDeque<Waiter<?>>();
+        private double tokens;
+        private long refilled = System.nanoTime();
+        private boolean drainScheduled;
+
+        Bucket(String name, int perMinute) {
+            this.name = name;
+            this.rate = perMinute / 60000.0;
+            this.capacity = Math.max(1, perMinute * BURST_SECONDS / 60);
+            this.tokens = capacity;
+        }
+
+        void submit(final Waiter<?> waiter) {
+            boolean queued;
+            synchronized (this) {
+                refill();
+                queued = !queue.isEmpty() || tokens < 1;
+                if (queued) {
+                    queue.add(waiter);
+                    metrics.increment("throttle." + name + ".throttled");
+                    scheduleDrain();
+                } else {
+                    tokens--;
+                }
+            }
+            if (!queued) {
+                waiter.start();
+                return;
+            }
+            /* Don't keep a waiter that was given up on in the queue depth,
+             * or ahead of live ones, until a drain gets to it. */
+            waiter.result.addListener(new Runnable() {
+                public void run() {
+                    if (waiter.result.isCancelled())
+                        remove(waiter);
+                }
+            });
+        }
+
+        private synchronized void remove(Waiter<?> waiter) {
+            queue.remove(waiter);
+        }
+
+        private void drain() {
+            List<Waiter<?>> ready = new ArrayList<Waiter<?>>();
+            synchronized (this) {
+                drainScheduled = false;
+                refill();
+                Waiter<?> w;
+                while (tokens >= 1 && (w = queue.poll()) != null) {
+                    /* Given up on while it waited. */
+                    if (w.result.isDone())
+                        continue;
+                    tokens--;
+                    ready.add(w);
+                }
+                scheduleDrain();
+            }
+            long now = System.nanoTime();
+            for (Waiter<?> w : ready) {
+                metrics.add("throttle." + name + ".queueTime", (now - w.enqueued) / 1000000L);
+                w.start();
+            }
+        }
+
+        /* Called with the lock held. */
+        private void scheduleDrain() {
+            if (drainScheduled || queue.isEmpty())
+                return;
+            drainScheduled = true;
+            long delay = (long) Math.ceil((1 - tokens) / rate);
+            LabManagerScheduler.schedule(new Runnable() {
+                public void run() {
+                    drain();
+                }
+            }, Math.max(delay, 1));
+        }
+
+        /* Called with the lock held. */
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilled) / 1000000.0 * rate);
+            refilled = now;
+        }
+
+        synchronized int getQueueDepth() {
+            return queue.size();
+        }
+    }
+}
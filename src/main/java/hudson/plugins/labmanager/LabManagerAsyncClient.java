@@ -0,0 +1,476 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAP12Constants;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.client.OperationClient;
+import org.apache.axis2.client.Options;
+import org.apache.axis2.client.async.AxisCallback;
+import org.apache.axis2.context.MessageContext;
+import org.apache.axis2.databinding.ADBBean;
+import org.apache.axis2.databinding.ADBException;
+import org.apache.axis2.transport.http.HTTPConstants;
+import org.apache.axis2.util.Utils;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+
+import com.vmware.labmanager.*;
+import com.vmware.labmanager.LabManager_x0020_SOAP_x0020_interfaceStub.*;
+
+/**
+ * Non-blocking access to the Lab Manager SOAP operations that the plugin
+ * uses.  Each call is sent without blocking, the way the stub's start*
+ * methods do, and the result is delivered through a
+ * {@link LabManagerFuture}, so many calls can be in flight without a
+ * Jenkins thread waiting on each of them.  Cancelling the future aborts
+ * the call's HTTP request.
+ *
+ * The listMachines variants that return {@link LabManagerMachineInfo}
+ * bypass the generated ADB classes for the response and read it with
+ * {@link LabManagerMachineListReader} as it streams in.
+ *
+ * When the cloud names an organization the calls are made in a
+ * {@link LabManagerSession} that is bound to it.
+ */
+public final class LabManagerAsyncClient extends AbstractLabManagerClient {
+    private final LabManager_x0020_SOAP_x0020_interfaceStub lmStub;
+    private final AuthenticationHeaderE lmAuth;
+    private final long readTimeout;
+    /* The session our calls are made in, or null when the cloud has no
+     * organization to bind.  The stub must send its calls with the
+     * session's cookies. */
+    private final LabManagerSession session;
+
+    /**
+     * @param readTimeout The socket timeout, in milliseconds, for the
+     * listMachines calls we send ourselves.  The other calls use the
+     * stub's options.
+     * @param session The session to bind to the cloud's organization and
+     * workspace, or null to use the user's defaults.
+     */
+    public LabManagerAsyncClient(LabManager_x0020_SOAP_x0020_interfaceStub lmStub,
+                    AuthenticationHeaderE lmAuth, long readTimeout, LabManagerSession session) {
+        this.lmStub = lmStub;
+        this.lmAuth = lmAuth;
+        this.readTimeout = readTimeout;
+        this.session = session;
+    }
+
+    /**
+     * Make a call in our session, binding it first if needed.
+     * @param read Whether the call only looks something up.
+     */
+    private <T> LabManagerFuture<T> inSession(boolean read, LabManagerCall<T> call) {
+        if (session == null)
+            return call.start();
+        return session.execute(binder, read, call);
+    }
+
+    /* Sets the current organization, then the current workspace. */
+    private final LabManagerCall<Void> binder = new LabManagerCall<Void>() {
+        public LabManagerFuture<Void> start() {
+            final LabManagerFuture<Void> f = new LabManagerFuture<Void>();
+            final LabManagerFuture<Void> org = setCurrentOrganizationByName(session.getOrganization());
+            org.addListener(new Runnable() {
+                public void run() {
+                    if (org.getFailure() != null)
+                        f.setException(org.getFailure());
+                    else
+                        setCurrentWorkspaceByName(session.getOrganization(), session.getWorkspace()).forwardTo(f);
+                }
+            });
+            return f;
+        }
+    };
+
+    private LabManagerFuture<Void> setCurrentOrganizationByName(String organization) {
+        SetCurrentOrganizationByName req = new SetCurrentOrganizationByName();
+        req.setOrgName(organization);
+        return send("SetCurrentOrganizationByName", req, SetCurrentOrganizationByName.MY_QNAME, 0, NO_RESULT);
+    }
+
+    private LabManagerFuture<Void> setCurrentWorkspaceByName(String organization, String workspace) {
+        SetCurrentWorkspaceByName req = new SetCurrentWorkspaceByName();
+        req.setOrgName(organization);
+        req.setWorkspaceName(workspace);
+        return send("SetCurrentWorkspaceByName", req, SetCurrentWorkspaceByName.MY_QNAME, 0, NO_RESULT);
+    }
+
+    /**
+     * Look up a configuration by its name.
+     */
+    public LabManagerFuture<Configuration> getSingleConfigurationByName(final String name) {
+        return inSession(true, new LabManagerCall<Configuration>() {
+            public LabManagerFuture<Configuration> start() {
+                return sendGetSingleConfigurationByName(name);
+            }
+        });
+    }
+
+    private LabManagerFuture<Configuration> sendGetSingleConfigurationByName(String name) {
+        GetSingleConfigurationByName req = new GetSingleConfigurationByName();
+        req.setName(name);
+        return send("GetSingleConfigurationByName", req, GetSingleConfigurationByName.MY_QNAME, 0,
+                new ResponseParser<Configuration>() {
+            public Configuration parse(XMLStreamReader reader) throws Exception {
+                return GetSingleConfigurationByNameResponse.Factory.parse(reader).getGetSingleConfigurationByNameResult();
+            }
+        });
+    }
+
+    public LabManagerFuture<Integer> getConfigurationId(String configurationName) {
+        final LabManagerFuture<Integer> f = new LabManagerFuture<Integer>();
+        final LabManagerFuture<Configuration> conf = getSingleConfigurationByName(configurationName);
+        cancelWith(f, conf);
+        conf.addListener(new Runnable() {
+            public void run() {
+                if (conf.isCancelled())
+                    f.cancel(false);
+                else if (conf.getFailure() != null)
+                    f.setException(conf.getFailure());
+                else if (conf.getNow() == null)
+                    f.set(null);
+                else
+                    f.set(Integer.valueOf(conf.getNow().getId()));
+            }
+        });
+        return f;
+    }
+
+    /**
+     * List the machines in the configuration with the given id.
+     */
+    public LabManagerFuture<Machine[]> listMachines(final int configurationId) {
+        return inSession(true, new LabManagerCall<Machine[]>() {
+            public LabManagerFuture<Machine[]> start() {
+                return sendListMachines(configurationId);
+            }
+        });
+    }
+
+    private LabManagerFuture<Machine[]> sendListMachines(int configurationId) {
+        ListMachines req = new ListMachines();
+        req.setConfigurationId(configurationId);
+        return send("ListMachines", req, ListMachines.MY_QNAME, 0, new ResponseParser<Machine[]>() {
+            public Machine[] parse(XMLStreamReader reader) throws Exception {
+                ArrayOfMachine aom = ListMachinesResponse.Factory.parse(reader).getListMachinesResult();
+                Machine[] machines = aom == null ? null : aom.getMachine();
+                return machines == null ? new Machine[0] : machines;
+            }
+        });
+    }
+
+    /**
+     * List the machines in the named configuration.  This chains the
+     * configuration lookup and the listMachines call.
+     */
+    public LabManagerFuture<Machine[]> listMachines(String configurationName) {
+        return withConfiguration(configurationName, new ConfigurationCall<Machine[]>() {
+            public LabManagerFuture<Machine[]> start(int configurationId) {
+                return listMachines(configurationId);
+            }
+        });
+    }
+
+    /**
+     * List the id, name and status of the machines in a configuration,
+     * streaming the response instead of building ADB objects for it.
+     */
+    public LabManagerFuture<List<LabManagerMachineInfo>> listMachineInfo(int configurationId) {
+        return streamListMachines(configurationId, new LabManagerResponseReader<List<LabManagerMachineInfo>>() {
+            public List<LabManagerMachineInfo> read(XMLStreamReader reader) throws XMLStreamException {
+                return LabManagerMachineListReader.readAll(reader);
+            }
+        });
+    }
+
+    /**
+     * Find one machine in a configuration by name.  The response is
+     * streamed and we stop reading it once the machine is found.  The
+     * future completes with null if there is no such machine.
+     */
+    public LabManagerFuture<LabManagerMachineInfo> findMachine(int configurationId, final String name) {
+        return streamListMachines(configurationId, new LabManagerResponseReader<LabManagerMachineInfo>() {
+            public LabManagerMachineInfo read(XMLStreamReader reader) throws XMLStreamException {
+                return LabManagerMachineListReader.find(reader, name);
+            }
+        });
+    }
+
+    /**
+     * Send a listMachines request ourselves, the way the generated
+     * startlistMachines does, but hand the raw response to our reader
+     * instead of the ADB factory.
+     */
+    private <T> LabManagerFuture<T> streamListMachines(final int configurationId,
+                    final LabManagerResponseReader<T> responseReader) {
+        return inSession(true, new LabManagerCall<T>() {
+            public LabManagerFuture<T> start() {
+                return sendListMachines(configurationId, responseReader);
+            }
+        });
+    }
+
+    private <T> LabManagerFuture<T> sendListMachines(int configurationId,
+                    final LabManagerResponseReader<T> responseReader) {
+        ListMachines req = new ListMachines();
+        req.setConfigurationId(configurationId);
+        return send("ListMachines", req, ListMachines.MY_QNAME, readTimeout, new ResponseParser<T>() {
+            public T parse(XMLStreamReader reader) throws Exception {
+                return responseReader.read(reader);
+            }
+        });
+    }
+
+    /**
+     * Reads a response, from the first element of the SOAP body.
+     */
+    private interface ResponseParser<T> {
+        T parse(XMLStreamReader reader) throws Exception;
+    }
+
+    /* For calls whose response says nothing we need. */
+    private static final ResponseParser<Void> NO_RESULT = new ResponseParser<Void>() {
+        public Void parse(XMLStreamReader reader) {
+            return null;
+        }
+    };
+
+    /**
+     * Send a request the way the generated start* methods do, but with an
+     * OperationClient and HttpClient of our own, so that cancelling the
+     * future aborts the call, and read the response as it streams in.
+     * The call is recorded if {@link LabManagerRecorder} is on.
+     *
+     * @param operation The operation, as named in the WSDL.
+     * @param timeout The longest the call may take, in milliseconds, or 0
+     * for the stub's own timeout.
+     */
+    private <T> LabManagerFuture<T> send(String operation, ADBBean request, QName element, long timeout,
+                    final ResponseParser<T> parser) {
+        final LabManagerFuture<T> f = new LabManagerFuture<T>();
+        LabManagerRecorder.Exchange recording = null;
+        try {
+            OperationClient client = lmStub._getServiceClient().createClient(new QName(
+                    LabManagerMachineListReader.NAMESPACE,
+                    Character.toLowerCase(operation.charAt(0)) + operation.substring(1)));
+            Options options = client.getOptions();
+            options.setAction(LabManagerMachineListReader.NAMESPACE + '/' + operation);
+            options.setExceptionToBeThrownOnSOAPFault(true);
+            if (timeout > 0)
+                options.setTimeOutInMilliSeconds(timeout);
+
+            SOAPFactory factory = SOAP12Constants.SOAP_ENVELOPE_NAMESPACE_URI.equals(options.getSoapVersionURI())
+                    ? OMAbstractFactory.getSOAP12Factory() : OMAbstractFactory.getSOAP11Factory();
+            SOAPEnvelope env = factory.getDefaultEnvelope();
+            env.getBody().addChild(request.getOMElement(element, factory));
+            /* Recorded before the authentication header goes in. */
+            if (LabManagerRecorder.isRecording())
+                recording = LabManagerRecorder.start(operation, LabManagerEnvelopeTemplate.utf8(env.toString()));
+            HttpClient pooled = (HttpClient) options.getProperty(HTTPConstants.CACHED_HTTP_CLIENT);
+            final LabManagerCallHttpClient http = pooled == null ? null : new LabManagerCallHttpClient(pooled, recording);
+            if (http != null)
+                options.setProperty(HTTPConstants.CACHED_HTTP_CLIENT, http);
+            if (lmAuth != null)
+                env.getHeader().addChild(lmAuth.getOMElement(AuthenticationHeaderE.MY_QNAME, factory));
+            lmStub._getServiceClient().addHeadersToEnvelope(env);
+
+            final MessageContext mc = new MessageContext();
+            mc.setEnvelope(env);
+            client.addMessageContext(mc);
+            /* Stop the request if it is still to go out, and drop the
+             * connection if it has, so a call we gave up on holds no
+             * socket and counts against no limit. */
+            f.addListener(new Runnable() {
+                public void run() {
+                    if (!f.isCancelled())
+                        return;
+                    if (http != null) {
+                        http.abort();
+                    } else {
+                        HttpMethod method = (HttpMethod) mc.getProperty(HTTPConstants.HTTP_METHOD);
+                        if (method != null)
+                            method.abort();
+                    }
+                }
+            });
+            final LabManagerRecorder.Exchange call = recording;
+            client.setCallback(new AxisCallback() {
+                public void onMessage(MessageContext resultContext) {
+                    if (f.isDone())
+                        return;
+                    try {
+                        /* The envelope is built as it is read, so the
+                         * body has not been read yet. */
+                        HttpMethod method = (HttpMethod) mc.getProperty(HTTPConstants.HTTP_METHOD);
+                        Header length = method == null ? null : method.getResponseHeader("Content-Length");
+                        if (length != null)
+                            LabManagerResponseLimits.checkLength(Long.parseLong(length.getValue().trim()));
+                        OMElement body = resultContext.getEnvelope().getBody().getFirstElement();
+                        f.set(parser.parse(LabManagerResponseLimits.limit(body.getXMLStreamReaderWithoutCaching())));
+                    } catch (Exception e) {
+                        f.setException(e);
+                    }
+                }
+
+                public void onFault(MessageContext faultContext) {
+                    onError(Utils.getInboundFaultFromMessageContext(faultContext));
+                }
+
+                public void onError(Exception e) {
+                    f.setException(e);
+                }
+
+                public void onComplete() {
+                    if (call != null)
+                        call.end();
+                    /* Give the connection back to the pool, even if we
+                     * stopped reading before the end of the response.
+                     * Giving it back reads the rest of the response, so
+                     * drop it instead if the response was too large. */
+                    if (LabManagerResponseLimits.isExceeded(f.getFailure())) {
+                        HttpMethod method = (HttpMethod) mc.getProperty(HTTPConstants.HTTP_METHOD);
+                        if (method != null)
+                            method.abort();
+                    }
+                    try {
+                        mc.getTransportOut().getSender().cleanup(mc);
+                    } catch (AxisFault e) {
+                        f.setException(e);
+                    }
+                }
+            });
+            client.execute(false);
+        } catch (ADBException e) {
+            failed(f, AxisFault.makeFault(e), recording);
+        } catch (AxisFault e) {
+            failed(f, e, recording);
+        }
+        return f;
+    }
+
+    /**
+     * A call that failed before it was handed to Axis2's worker, so
+     * onComplete will not end its recording.
+     */
+    private static void failed(LabManagerFuture<?> f, AxisFault e, LabManagerRecorder.Exchange recording) {
+        f.setException(e);
+        if (recording != null)
+            recording.end();
+    }
+
+    /**
+     * Look up a machine by its id.
+     */
+    public LabManagerFuture<Machine> getMachine(final int machineId) {
+        return inSession(true, new LabManagerCall<Machine>() {
+            public LabManagerFuture<Machine> start() {
+                return sendGetMachine(machineId);
+            }
+        });
+    }
+
+    private LabManagerFuture<Machine> sendGetMachine(int machineId) {
+        GetMachine req = new GetMachine();
+        req.setMachineId(machineId);
+        return send("GetMachine", req, GetMachine.MY_QNAME, 0, new ResponseParser<Machine>() {
+            public Machine parse(XMLStreamReader reader) throws Exception {
+                return GetMachineResponse.Factory.parse(reader).getGetMachineResult();
+            }
+        });
+    }
+
+    public LabManagerFuture<LabManagerMachineInfo> getMachineInfo(int machineId) {
+        return toMachineInfo(getMachine(machineId));
+    }
+
+    /**
+     * Look up a machine by its name within a configuration.
+     */
+    public LabManagerFuture<Machine> getMachineByName(final int configurationId, final String name) {
+        return inSession(true, new LabManagerCall<Machine>() {
+            public LabManagerFuture<Machine> start() {
+                return sendGetMachineByName(configurationId, name);
+            }
+        });
+    }
+
+    private LabManagerFuture<Machine> sendGetMachineByName(int configurationId, String name) {
+        GetMachineByName req = new GetMachineByName();
+        req.setConfigurationId(configurationId);
+        req.setName(name);
+        return send("GetMachineByName", req, GetMachineByName.MY_QNAME, 0, new ResponseParser<Machine>() {
+            public Machine parse(XMLStreamReader reader) throws Exception {
+                return GetMachineByNameResponse.Factory.parse(reader).getGetMachineByNameResult();
+            }
+        });
+    }
+
+    public LabManagerFuture<LabManagerMachineInfo> getMachineInfoByName(int configurationId, String name) {
+        return toMachineInfo(getMachineByName(configurationId, name));
+    }
+
+    private static LabManagerFuture<LabManagerMachineInfo> toMachineInfo(final LabManagerFuture<Machine> machine) {
+        final LabManagerFuture<LabManagerMachineInfo> f = new LabManagerFuture<LabManagerMachineInfo>();
+        cancelWith(f, machine);
+        machine.addListener(new Runnable() {
+            public void run() {
+                Machine m = machine.getNow();
+                if (machine.isCancelled())
+                    f.cancel(false);
+                else if (machine.getFailure() != null)
+                    f.setException(machine.getFailure());
+                else if (m == null)
+                    f.set(null);
+                else
+                    f.set(new LabManagerMachineInfo(m.getId(), m.getName(), m.getStatus()));
+            }
+        });
+        return f;
+    }
+
+    /**
+     * Ask Lab Manager to perform an action on a machine.  The future
+     * completes with null once the server has accepted the action.
+     */
+    public LabManagerFuture<Void> machinePerformAction(final int machineId, final int action) {
+        return inSession(false, new LabManagerCall<Void>() {
+            public LabManagerFuture<Void> start() {
+                return sendMachinePerformAction(machineId, action);
+            }
+        });
+    }
+
+    private LabManagerFuture<Void> sendMachinePerformAction(int machineId, int action) {
+        MachinePerformAction req = new MachinePerformAction();
+        req.setMachineId(machineId);
+        req.setAction(action);
+        return send("MachinePerformAction", req, MachinePerformAction.MY_QNAME, 0, NO_RESULT);
+    }
+}
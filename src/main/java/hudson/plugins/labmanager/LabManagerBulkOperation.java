@@ -0,0 +1,264 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Performs one machine action on many machines, for example resuming a
+ * pool of slaves in the morning or reverting them at night.
+ *
+ * The names are looked up in a single machine listing, then the actions
+ * are sent with at most a given number in flight; each one that completes
+ * starts the next, so no thread waits on them.  A machine whose action
+ * fails does not stop the others.  Cancelling the result cancels the
+ * actions in flight and starts no more.
+ */
+public final class LabManagerBulkOperation {
+    /* Used when the caller does not give a limit. */
+    public static final int DEFAULT_PARALLELISM = Integer.getInteger(LabManagerBulkOperation.class.getName() + ".parallelism", 8);
+
+    private final LabManagerClient client;
+    private final int action;
+    private final int parallelism;
+    private final long start = System.nanoTime();
+    private final LabManagerFuture<Result> result = new LabManagerFuture<Result>();
+    private final Queue<LabManagerMachineInfo> pending = new ArrayDeque<LabManagerMachineInfo>();
+    private final List<LabManagerFuture<Void>> running = new ArrayList<LabManagerFuture<Void>>();
+    private final List<String> succeeded = new ArrayList<String>();
+    private final Map<String, Throwable> failed = new LinkedHashMap<String, Throwable>();
+    private final List<String> notFound = new ArrayList<String>();
+    private boolean pumping;
+    private boolean repump;
+
+    private LabManagerBulkOperation(LabManagerClient client, int action, int parallelism) {
+        this.client = client;
+        this.action = action;
+        this.parallelism = parallelism > 0 ? parallelism : DEFAULT_PARALLELISM;
+    }
+
+    /**
+     * Perform the action on each of the named machines.
+     *
+     * @param machines The listing to find the machines' ids in.
+     * @param vmNames The machines to act on; duplicates are acted on once.
+     * @param client The client to send the actions through.
+     * @param action The machine action code, see
+     * {@link LabManagerVirtualMachineLauncher}.
+     * @param parallelism The most actions to have in flight at once, or 0
+     * for {@link #DEFAULT_PARALLELISM}.
+     * @return A future that completes once every action has, or fails if
+     * the machines could not be listed.
+     */
+    public static LabManagerFuture<Result> start(final LabManagerFuture<List<LabManagerMachineInfo>> machines,
+                    Collection<String> vmNames, LabManagerClient client, int action, int parallelism) {
+        final LabManagerBulkOperation op = new LabManagerBulkOperation(client, action, parallelism);
+        final Set<String> names = new LinkedHashSet<String>(vmNames);
+        op.result.addListener(new Runnable() {
+            public void run() {
+                /* The listing may be shared, see LabManagerSingleFlight;
+                 * let it finish and be ignored. */
+                if (op.result.isCancelled())
+                    op.cancelRunning();
+            }
+        });
+        machines.addListener(new Runnable() {
+            public void run() {
+                if (machines.isCancelled()) {
+                    op.result.cancel(false);
+                    return;
+                }
+                Throwable failure = machines.getFailure();
+                if (failure != null) {
+                    op.result.setException(failure);
+                    return;
+                }
+                op.resolve(names, machines.getNow());
+                op.pump();
+            }
+        });
+        return op.result;
+    }
+
+    private synchronized void resolve(Set<String> names, List<LabManagerMachineInfo> machines) {
+        Map<String, LabManagerMachineInfo> byName = new HashMap<String, LabManagerMachineInfo>();
+        for (LabManagerMachineInfo m : machines)
+            byName.put(m.getName(), m);
+        for (String name : names) {
+            LabManagerMachineInfo m = byName.get(name);
+            if (m == null)
+                notFound.add(name);
+            else
+                pending.add(m);
+        }
+    }
+
+    /**
+     * Start actions until the limit is reached or none are left, and
+     * complete the result once the last one is done.  An action that
+     * completes while we are starting others asks for another pass rather
+     * than starting one itself, so a run of quick failures does not nest.
+     */
+    private void pump() {
+        synchronized (this) {
+            if (pumping) {
+                repump = true;
+                return;
+            }
+            pumping = true;
+        }
+        boolean finished;
+        for (;;) {
+            LabManagerMachineInfo next;
+            synchronized (this) {
+                if (result.isDone() || running.size() >= parallelism || pending.isEmpty()) {
+                    if (repump) {
+                        repump = false;
+                        continue;
+                    }
+                    pumping = false;
+                    finished = running.isEmpty() && pending.isEmpty();
+                    break;
+                }
+                next = pending.poll();
+            }
+            send(next);
+        }
+        if (finished)
+            result.set(toResult());
+    }
+
+    private void send(final LabManagerMachineInfo machine) {
+        LabManagerFuture<Void> started;
+        try {
+            started = client.machinePerformAction(machine.getId(), action);
+        } catch (RuntimeException e) {
+            started = new LabManagerFuture<Void>();
+            started.setException(e);
+        }
+        final LabManagerFuture<Void> f = started;
+        synchronized (this) {
+            running.add(f);
+        }
+        f.addListener(new Runnable() {
+            public void run() {
+                synchronized (LabManagerBulkOperation.this) {
+                    running.remove(f);
+                    if (f.isCancelled())
+                        failed.put(machine.getName(), new IllegalStateException("Cancelled"));
+                    else if (f.getFailure() != null)
+                        failed.put(machine.getName(), f.getFailure());
+                    else
+                        succeeded.add(machine.getName());
+                }
+                pump();
+            }
+        });
+    }
+
+    private void cancelRunning() {
+        List<LabManagerFuture<Void>> toCancel;
+        synchronized (this) {
+            pending.clear();
+            toCancel = new ArrayList<LabManagerFuture<Void>>(running);
+        }
+        for (LabManagerFuture<Void> f : toCancel)
+            f.cancel(true);
+    }
+
+    private synchronized Result toResult() {
+        return new Result(action, succeeded, failed, notFound, (System.nanoTime() - start) / 1000000L);
+    }
+
+    /**
+     * What became of each machine in a bulk operation.
+     */
+    public static final class Result {
+        private final int action;
+        private final List<String> succeeded;
+        private final Map<String, Throwable> failed;
+        private final List<String> notFound;
+        private final long elapsed;
+
+        Result(int action, List<String> succeeded, Map<String, Throwable> failed,
+                        List<String> notFound, long elapsed) {
+            this.action = action;
+            this.succeeded = Collections.unmodifiableList(new ArrayList<String>(succeeded));
+            this.failed = Collections.unmodifiableMap(new LinkedHashMap<String, Throwable>(failed));
+            this.notFound = Collections.unmodifiableList(new ArrayList<String>(notFound));
+            this.elapsed = elapsed;
+        }
+
+        public int getAction() {
+            return action;
+        }
+
+        /**
+         * @return The machines whose action completed, in the order they did.
+         */
+        public List<String> getSucceeded() {
+            return succeeded;
+        }
+
+        /**
+         * @return What went wrong with each machine whose action failed.
+         */
+        public Map<String, Throwable> getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return The names that are not in the configuration.
+         */
+        public List<String> getNotFound() {
+            return notFound;
+        }
+
+        /**
+         * @return The wall-clock time the whole operation took, listing the
+         * machines included, in milliseconds.
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        public boolean isSuccess() {
+            return failed.isEmpty() && notFound.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Action ").append(action).append(": ");
+            sb.append(succeeded.size()).append(" succeeded, ");
+            sb.append(failed.size()).append(" failed, ");
+            sb.append(notFound.size()).append(" not found in ");
+            sb.append(elapsed).append(" ms");
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.io.IOException;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpContentTooLargeException;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpState;
+
+/**
+ * The HttpClient that one Axis2 call is sent through.  It shares the
+ * pool's connections and cookies, and keeps hold of the call's
+ * {@link HttpMethod}, which Axis2 does not give us until the response is
+ * in, so that a call we have given up on can be aborted: a request that
+ * has not gone out yet never does, and one that has loses its connection.
+ *
+ * When the call is being recorded it also notes when the response headers
+ * arrive and reads the response into memory, within
+ * {@link LabManagerResponseLimits#MAX_BYTES}, so the recording gets a copy;
+ * Axis2 then reads it from there.
+ */
+final class LabManagerCallHttpClient extends HttpClient {
+    private final HttpClient pooled;
+    private final LabManagerRecorder.Exchange recording;
+    private HttpMethod method;
+    private boolean aborted;
+
+    /**
+     * @param recording The call's recording, or null.
+     */
+    LabManagerCallHttpClient(HttpClient pooled, LabManagerRecorder.Exchange recording) {
+        super(pooled.getParams(), pooled.getHttpConnectionManager());
+        this.pooled = pooled;
+        this.recording = recording;
+    }
+
+    @Override
+    public int executeMethod(HostConfiguration hostConfiguration, HttpMethod method, HttpState state)
+            throws IOException {
+        synchronized (this) {
+            if (aborted)
+                throw new IOException("Lab Manager call cancelled before it was sent");
+            this.method = method;
+        }
+        /* Without a session the calls share the pool's cookies, as they
+         * did when Axis2 used the pool's client directly. */
+        int status = super.executeMethod(hostConfiguration, method, state == null ? pooled.getState() : state);
+        if (recording != null)
+            record(method, status);
+        return status;
+    }
+
+    private void record(HttpMethod method, int status) throws IOException {
+        Header contentType = method.getResponseHeader("Content-Type");
+        recording.responded(status, contentType == null ? null : contentType.getValue());
+        if (!(method instanceof HttpMethodBase))
+            return;
+        try {
+            byte[] body = ((HttpMethodBase) method).getResponseBody(
+                    (int) Math.min(LabManagerResponseLimits.MAX_BYTES, Integer.MAX_VALUE));
+            if (body != null)
+                recording.received(body);
+        } catch (HttpContentTooLargeException e) {
+            method.abort();
+            throw LabManagerResponseLimits.tooLarge("over " + e.getMaxLength() + " bytes");
+        }
+    }
+
+    /**
+     * Stop the call, whether or not it has been sent yet.
+     */
+    void abort() {
+        HttpMethod m;
+        synchronized (this) {
+            aborted = true;
+            m = method;
+        }
+        if (m != null)
+            m.abort();
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops a cloud from calling Lab Manager while it is unreachable.
+ *
+ * After enough transport failures in a row (connection refused, socket
+ * timeouts and the like, and faults saying the server is too busy, but not
+ * other SOAP faults) the breaker opens and every
+ * call fails straight away with {@link LabManagerCircuitOpenException}.
+ * Once it has been open for a while a single probe call is let through; if
+ * it succeeds the breaker closes again, otherwise it stays open for
+ * another round.
+ */
+public final class LabManagerCircuitBreaker {
+    private static final Logger LOGGER = Logger.getLogger(LabManagerCircuitBreaker.class.getName());
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /* Consecutive transport failures or busy faults that open the breaker. */
+    private static final int FAILURE_THRESHOLD = Integer.getInteger(LabManagerCircuitBreaker.class.getName() + ".failureThreshold", 5);
+    /* How long to stay open before probing, in milliseconds. */
+    private static final long OPEN_TIME = Long.getLong(LabManagerCircuitBreaker.class.getName() + ".openTime", 30000L);
+
+    private final String name;
+    private final LabManagerMetrics metrics;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean probing;
+
+    /**
+     * @param name Identifies the cloud in log messages.
+     */
+    public LabManagerCircuitBreaker(String name, LabManagerMetrics metrics) {
+        this.name = name;
+        this.metrics = metrics;
+    }
+
+    public <V> LabManagerFuture<V> execute(LabManagerCall<V> call) {
+        final boolean probe;
+        synchronized (this) {
+            if (state == State.OPEN && System.currentTimeMillis() - openedAt >= OPEN_TIME) {
+                state = State.HALF_OPEN;
+                probing = false;
+            }
+            if (state == State.OPEN || (state == State.HALF_OPEN && probing)) {
+                metrics.increment("breaker.rejected");
+                LabManagerFuture<V> f = new LabManagerFuture<V>();
+                f.setException(new LabManagerCircuitOpenException("Lab Manager at " + name
+                        + " is not responding; not calling it for now"));
+                return f;
+            }
+            probe = state == State.HALF_OPEN;
+            if (probe)
+                probing = true;
+        }
+
+        LabManagerFuture<V> f;
+        try {
+            f = call.start();
+        } catch (RuntimeException e) {
+            f = new LabManagerFuture<V>();
+            f.setException(e);
+        }
+        final LabManagerFuture<V> outcome = f;
+        outcome.addListener(new Runnable() {
+            public void run() {
+                if (outcome.isCancelled())
+                    release(probe);
+                else
+                    record(probe, outcome.getFailure());
+            }
+        });
+        return outcome;
+    }
+
+    /**
+     * A cancelled call tells us nothing; if it was the probe, let another
+     * call probe instead.
+     */
+    private synchronized void release(boolean probe) {
+        if (probe && state == State.HALF_OPEN)
+            probing = false;
+    }
+
+    private synchronized void record(boolean probe, Throwable failure) {
+        if (!isTransportFailure(failure) && !LabManagerFault.is(failure, LabManagerFault.Kind.BUSY)) {
+            failures = 0;
+            if (state != State.CLOSED) {
+                LOGGER.log(Level.INFO, "Lab Manager at " + name + " is responding again");
+                state = State.CLOSED;
+            }
+            return;
+        }
+        failures++;
+        if (probe || (state == State.CLOSED && failures >= FAILURE_THRESHOLD)) {
+            if (state == State.CLOSED) {
+                LOGGER.log(Level.WARNING, "Lab Manager at " + name + " failed " + failures
+                        + " calls in a row; failing calls to it for the next " + OPEN_TIME + "ms", failure);
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            metrics.increment("breaker.opened");
+        }
+    }
+
+    /**
+     * Transport problems show up as an IOException somewhere in the cause
+     * chain.  SOAP faults are RemoteExceptions without one: the server
+     * answered, so they don't count.
+     */
+    static boolean isTransportFailure(Throwable t) {
+        for (int depth = 0; t != null && depth < 10; t = t.getCause(), depth++) {
+            if (t instanceof IOException && !(t instanceof RemoteException))
+                return true;
+        }
+        return false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized boolean isOpen() {
+        return state == State.OPEN;
+    }
+
+    /**
+     * Add the breaker's state to a metrics snapshot; 0 is closed, 1 open
+     * and 2 half-open.
+     */
+    public synchronized void addMetrics(Map<String, Long> snapshot) {
+        snapshot.put("breaker.state", Long.valueOf(state.ordinal()));
+        snapshot.put("breaker.consecutiveFailures", Long.valueOf(failures));
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.util.List;
+
+/**
+ * The Lab Manager SOAP operations the plugin performs, independent of how
+ * they are sent.  Every call returns straight away; the result arrives
+ * through the returned future.
+ *
+ * Cancelling a returned future aborts the call: a request that has not
+ * been sent yet is not sent, and one in flight has its connection
+ * dropped, so it holds no socket and no place in any limit.  For calls
+ * made of several requests, such as the by-name lookups, that applies to
+ * whichever request is in flight.  A request the server has already
+ * received may still be carried out.
+ */
+public interface LabManagerClient {
+    /**
+     * @return The id of the named configuration, or null if there is no
+     * such configuration.
+     */
+    LabManagerFuture<Integer> getConfigurationId(String configurationName);
+
+    LabManagerFuture<List<LabManagerMachineInfo>> listMachineInfo(int configurationId);
+
+    LabManagerFuture<List<LabManagerMachineInfo>> listMachineInfo(String configurationName);
+
+    /**
+     * Find a machine by name in the machine list of a configuration.
+     * Completes with null if there is no such machine.
+     */
+    LabManagerFuture<LabManagerMachineInfo> findMachine(int configurationId, String name);
+
+    LabManagerFuture<LabManagerMachineInfo> findMachine(String configurationName, String name);
+
+    LabManagerFuture<LabManagerMachineInfo> getMachineInfo(int machineId);
+
+    LabManagerFuture<LabManagerMachineInfo> getMachineInfoByName(int configurationId, String name);
+
+    /**
+     * Completes with null once the server has accepted the action.
+     */
+    LabManagerFuture<Void> machinePerformAction(int machineId, int action);
+}
@@ -0,0 +1,198 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Limits how many SOAP calls a cloud has outstanding against Lab Manager.
+ * The limit adapts the AIMD way: every call that completes in time raises
+ * it a little (by 1/limit, so about one per round of calls), and a call
+ * that times out cuts it back by a quarter.  It never goes above the
+ * number of connections we keep to the host, nor below 1.
+ *
+ * Calls over the limit wait in a queue per {@link Priority}, and are
+ * started in priority order as earlier calls complete, so slaves being
+ * launched get ahead of slaves being torn down.
+ */
+public final class LabManagerConcurrencyLimiter {
+    /**
+     * In order of precedence.
+     */
+    public enum Priority { LAUNCH, NORMAL, TEARDOWN }
+
+    private static final double BACKOFF = 0.75;
+
+    private final LabManagerMetrics metrics;
+    private final int maxLimit;
+    private final Queue<Runnable>[] queues;
+    private double limit;
+    private int inFlight;
+    private int queued;
+    /* Timeouts of calls started before the last decrease are part of the
+     * same overload and must not cut the limit again. */
+    private long lastDecrease;
+
+    /**
+     * @param maxLimit The most calls that may ever be outstanding.
+     */
+    @SuppressWarnings("unchecked")
+    public LabManagerConcurrencyLimiter(LabManagerMetrics metrics, int maxLimit) {
+        this.metrics = metrics;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.max(1, (this.maxLimit + 1) / 2);
+        this.lastDecrease = System.nanoTime();
+        Priority[] priorities = Priority.values();
+        this.queues = new Queue[priorities.length];
+        for (int i = 0; i < priorities.length; i++)
+            queues[i] = new ArrayDeque<Runnable>();
+    }
+
+    /**
+     * Start the call now if we are under the limit, otherwise once enough
+     * earlier calls have completed.
+     */
+    public <V> LabManagerFuture<V> execute(Priority priority, final LabManagerCall<V> call) {
+        final LabManagerFuture<V> result = new LabManagerFuture<V>();
+        Runnable start = new Runnable() {
+            public void run() {
+                if (result.isCancelled()) {
+                    /* Given up on while it was queued. */
+                    complete(System.nanoTime(), true, null);
+                    return;
+                }
+                start(call, result);
+            }
+        };
+        synchronized (this) {
+            if (inFlight >= (int) limit) {
+                queues[priority.ordinal()].add(start);
+                queued++;
+                metrics.increment("limiter.queued");
+                return result;
+            }
+            inFlight++;
+        }
+        start.run();
+        return result;
+    }
+
+    private <V> void start(LabManagerCall<V> call, final LabManagerFuture<V> result) {
+        final long started = System.nanoTime();
+        LabManagerFuture<V> f;
+        try {
+            f = call.start();
+        } catch (RuntimeException e) {
+            f = new LabManagerFuture<V>();
+            f.setException(e);
+        }
+        final LabManagerFuture<V> outcome = f;
+        /* Cancelling a call aborts its HTTP request as part of the same
+         * cancel (see LabManagerAsyncClient and LightweightLabManagerClient),
+         * so a losing hedge or abandoned call that gives its place back
+         * is no longer running on the server. */
+        outcome.addListener(new Runnable() {
+            public void run() {
+                complete(started, outcome.isCancelled(), outcome.getFailure());
+            }
+        });
+        outcome.forwardTo(result);
+        /* Let whoever gave up on the call cancel it. */
+        result.addListener(new Runnable() {
+            public void run() {
+                if (result.isCancelled())
+                    outcome.cancel(true);
+            }
+        });
+    }
+
+    private void complete(long started, boolean cancelled, Throwable failure) {
+        List<Runnable> toStart = new ArrayList<Runnable>();
+        synchronized (this) {
+            inFlight--;
+            if (cancelled) {
+                /* Says nothing about the server. */
+            } else if (isTimeout(failure)) {
+                if (started - lastDecrease > 0) {
+                    limit = Math.max(1, limit * BACKOFF);
+                    lastDecrease = System.nanoTime();
+                    metrics.increment("limiter.decreased");
+                }
+            } else if (failure == null) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            while (inFlight < (int) limit) {
+                Runnable next = poll();
+                if (next == null)
+                    break;
+                inFlight++;
+                toStart.add(next);
+            }
+        }
+        for (Runnable r : toStart)
+            r.run();
+    }
+
+    private Runnable poll() {
+        for (Queue<Runnable> q : queues) {
+            Runnable r = q.poll();
+            if (r != null) {
+                queued--;
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Socket and connect timeouts show up somewhere in the cause chain as
+     * an {@link InterruptedIOException}.
+     */
+    private static boolean isTimeout(Throwable t) {
+        for (int depth = 0; t != null && depth < 10; t = t.getCause(), depth++) {
+            if (t instanceof InterruptedIOException)
+                return true;
+        }
+        return false;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queued;
+    }
+
+    /**
+     * Add the limiter's current state to a metrics snapshot.
+     */
+    public synchronized void addMetrics(Map<String, Long> snapshot) {
+        snapshot.put("limiter.limit", Long.valueOf((int) limit));
+        snapshot.put("limiter.inFlight", Long.valueOf(inFlight));
+        snapshot.put("limiter.queueDepth", Long.valueOf(queued));
+    }
+}
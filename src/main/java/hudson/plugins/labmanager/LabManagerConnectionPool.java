@@ -0,0 +1,194 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+/**
+ * A pool of persistent HTTP(S) connections to one Lab Manager host.
+ *
+ * Axis2 normally gives every call its own HttpClient, which means a new
+ * TCP connection and TLS handshake per SOAP request.  All of the stubs that
+ * talk to the same host share one of these pools instead, so connections
+ * are kept alive and reused between calls.
+ */
+public final class LabManagerConnectionPool {
+    private static final Logger LOGGER = Logger.getLogger(LabManagerConnectionPool.class.getName());
+
+    /* Used when a cloud does not specify a limit, for example when it
+     * was saved by an older version of the plugin. */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 10;
+
+    /* How long a connection may sit unused before it is closed. */
+    private static final long IDLE_TIMEOUT = Long.getLong(LabManagerConnectionPool.class.getName() + ".idleTimeout", 60000L);
+
+    /* How long to wait for a new connection to be established. */
+    private static final int CONNECT_TIMEOUT = Integer.getInteger(LabManagerConnectionPool.class.getName() + ".connectTimeout", 30000);
+
+    private static final ConcurrentMap<String, LabManagerConnectionPool> POOLS = new ConcurrentHashMap<String, LabManagerConnectionPool>();
+
+    private final String host;
+    private final MultiThreadedHttpConnectionManager connectionManager;
+    private final HttpClient httpClient;
+    private final ConcurrentMap<String, LabManagerSession> sessions = new ConcurrentHashMap<String, LabManagerSession>();
+
+    private LabManagerConnectionPool(String host) {
+        this.host = host;
+        this.connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setStaleCheckingEnabled(true);
+        params.setConnectionTimeout(CONNECT_TIMEOUT);
+        params.setDefaultMaxConnectionsPerHost(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        params.setMaxTotalConnections(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        this.httpClient = new HttpClient(connectionManager);
+    }
+
+    /**
+     * Return the pool for the given Lab Manager host, creating it if needed.
+     * Clouds that point at the same host share a pool; the most recently
+     * requested limit wins.
+     *
+     * @param lmHost The Lab Manager host, as entered in the cloud.
+     * @param maxConnectionsPerHost The most connections to keep open to the
+     * host, or 0 for the default.
+     */
+    public static LabManagerConnectionPool forHost(String lmHost, int maxConnectionsPerHost) {
+        String key = normalize(lmHost);
+        LabManagerConnectionPool pool = POOLS.get(key);
+        if (pool == null) {
+            LabManagerConnectionPool created = new LabManagerConnectionPool(key);
+            pool = POOLS.putIfAbsent(key, created);
+            if (pool == null)
+                pool = created;
+        }
+        pool.setMaxConnections(maxConnectionsPerHost);
+        return pool;
+    }
+
+    private static String normalize(String lmHost) {
+        String key = lmHost.trim().toLowerCase();
+        while (key.endsWith("/"))
+            key = key.substring(0, key.length() - 1);
+        return key;
+    }
+
+    private void setMaxConnections(int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost <= 0)
+            maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        params.setMaxTotalConnections(maxConnectionsPerHost);
+    }
+
+    /**
+     * Return the session for calls made by the given user in the given
+     * organization and workspace, creating it if needed.
+     */
+    public LabManagerSession getSession(String organization, String workspace, String username) {
+        String key = organization + '|' + workspace + '|' + username;
+        LabManagerSession session = sessions.get(key);
+        if (session == null) {
+            LabManagerSession created = new LabManagerSession(organization, workspace);
+            session = sessions.putIfAbsent(key, created);
+            if (session == null)
+                session = created;
+        }
+        return session;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public int getMaxConnections() {
+        return connectionManager.getParams().getMaxTotalConnections();
+    }
+
+    /**
+     * @return The number of connections currently open, busy or idle.
+     */
+    public int getConnectionsInPool() {
+        return connectionManager.getConnectionsInPool();
+    }
+
+    /**
+     * @return The number of connections currently handed out to a request.
+     */
+    @SuppressWarnings("deprecation")
+    public int getConnectionsInUse() {
+        return connectionManager.getConnectionsInUse();
+    }
+
+    public void closeIdleConnections(long idleTimeout) {
+        connectionManager.closeIdleConnections(idleTimeout);
+    }
+
+    /**
+     * Add this pool's usage figures to a metrics snapshot.  A cloud that
+     * talks to several hosts gets the totals over their pools.
+     */
+    public void addMetrics(Map<String, Long> metrics) {
+        add(metrics, "pool.max", getMaxConnections());
+        add(metrics, "pool.open", getConnectionsInPool());
+        add(metrics, "pool.inUse", getConnectionsInUse());
+        for (LabManagerSession session : sessions.values()) {
+            add(metrics, "session.binds", session.getBinds());
+            add(metrics, "session.resets", session.getResets());
+        }
+    }
+
+    private static void add(Map<String, Long> metrics, String name, long value) {
+        Long current = metrics.get(name);
+        metrics.put(name, Long.valueOf(current == null ? value : current.longValue() + value));
+    }
+
+    /**
+     * Periodically close connections that have been idle for too long so
+     * that we don't hold sockets the server or a firewall has given up on.
+     */
+    @Extension
+    public static class IdleConnectionReaper extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            for (LabManagerConnectionPool pool : POOLS.values()) {
+                LOGGER.log(Level.FINE, "Closing idle connections to " + pool.getHost()
+                        + " (" + pool.getConnectionsInPool() + " open)");
+                pool.closeIdleConnections(IDLE_TIMEOUT);
+            }
+        }
+    }
+}
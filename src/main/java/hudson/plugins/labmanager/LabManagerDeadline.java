@@ -0,0 +1,116 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The time budget for a launch or teardown.  Each Lab Manager call made
+ * under the deadline waits for at most its own timeout or whatever is left
+ * of the budget, whichever is shorter.  When either runs out we stop
+ * waiting, count it in the cloud's metrics and throw
+ * {@link LabManagerTimeoutException}, so that a hung Lab Manager cannot
+ * hold on to a Jenkins thread.
+ */
+public final class LabManagerDeadline {
+    private final String name;
+    private final LabManagerConcurrencyLimiter.Priority priority;
+    private final LabManagerMetrics metrics;
+    private final long expiresAt;
+
+    /**
+     * @param name What the budget is for, e.g. "launch".  Used in metric
+     * names and messages.
+     * @param priority The priority of the calls made under the deadline.
+     * @param budget The budget in milliseconds.
+     */
+    public LabManagerDeadline(String name, LabManagerConcurrencyLimiter.Priority priority,
+                    LabManagerMetrics metrics, long budget) {
+        this.name = name;
+        this.priority = priority;
+        this.metrics = metrics;
+        this.expiresAt = System.currentTimeMillis() + budget;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LabManagerConcurrencyLimiter.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return Milliseconds left, never less than 0.
+     */
+    public long remaining() {
+        return Math.max(0, expiresAt - System.currentTimeMillis());
+    }
+
+    public boolean isExpired() {
+        return remaining() == 0;
+    }
+
+    /**
+     * Throw if the budget has run out.
+     */
+    public void check() throws LabManagerTimeoutException {
+        if (isExpired())
+            throw expired();
+    }
+
+    /**
+     * Wait for a call that was made under this deadline.
+     *
+     * @param operation The SOAP operation, e.g. "machinePerformAction".
+     * @param operationTimeout The operation's own timeout in milliseconds.
+     */
+    public <V> V await(LabManagerFuture<V> f, String operation, long operationTimeout)
+            throws RemoteException, InterruptedException {
+        long left = remaining();
+        if (left == 0)
+            throw expired();
+        long wait = Math.min(left, operationTimeout);
+        try {
+            return f.await(wait, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (wait == left)
+                throw expired();
+            metrics.increment("timeout." + operation);
+            throw new LabManagerTimeoutException(operation + " did not complete within "
+                    + operationTimeout + "ms");
+        }
+    }
+
+    /**
+     * Sleep for the given time, or until the budget runs out.
+     * @throws LabManagerTimeoutException if the budget ran out first.
+     */
+    public void sleep(long millis) throws InterruptedException, LabManagerTimeoutException {
+        long left = remaining();
+        Thread.sleep(Math.min(left, millis));
+        if (millis > left)
+            throw expired();
+    }
+
+    private LabManagerTimeoutException expired() {
+        metrics.increment("deadline." + name + ".expired");
+        return new LabManagerTimeoutException("The Lab Manager " + name + " ran out of time");
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import org.apache.commons.httpclient.protocol.Protocol;
+
+/**
+ * One of the Lab Manager web servers a cloud talks to, with the client
+ * that reaches it and what {@link LabManagerEndpointRouter} knows about
+ * its health and speed.
+ */
+public final class LabManagerEndpoint {
+    /* How much the latest lookup counts towards the latency estimate. */
+    private static final double ALPHA = 0.3;
+    /* Consecutive transport failures that take the endpoint out of use. */
+    private static final int EJECT_AFTER = Integer.getInteger(LabManagerEndpoint.class.getName() + ".ejectAfter", 2);
+    /* How long the endpoint stays out, doubling each time a probe fails,
+     * in milliseconds. */
+    private static final long EJECT_TIME = Long.getLong(LabManagerEndpoint.class.getName() + ".ejectTime", 30000L);
+    private static final long MAX_EJECT_TIME = Long.getLong(LabManagerEndpoint.class.getName() + ".maxEjectTime", 300000L);
+
+    private final String host;
+    private final String name;
+    private final LabManagerConnectionPool pool;
+    private final Protocol protocol;
+    private final LabManagerSession session;
+    private final LabManagerClient client;
+
+    /* Moving average of the lookup times in milliseconds, -1 until the
+     * first one completes. */
+    private double latency = -1;
+    private int inFlight;
+    private int failures;
+    /* When the endpoint may be probed again, 0 while it is in use. */
+    private long ejectedUntil;
+    private int ejections;
+    private boolean probing;
+
+    /**
+     * @param host The host as entered in the cloud, e.g.
+     * https://lm1.example.com.
+     * @param protocol The https protocol for the host, or null.
+     * @param session The session the client binds, or null.
+     */
+    public LabManagerEndpoint(String host, LabManagerConnectionPool pool, Protocol protocol,
+                    LabManagerSession session, LabManagerClient client) {
+        this.host = host;
+        String n = host.trim();
+        int scheme = n.indexOf("://");
+        if (scheme >= 0)
+            n = n.substring(scheme + 3);
+        while (n.endsWith("/"))
+            n = n.substring(0, n.length() - 1);
+        this.name = n;
+        this.pool = pool;
+        this.protocol = protocol;
+        this.session = session;
+        this.client = client;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return The host without its scheme, for log messages and metrics.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public LabManagerConnectionPool getPool() {
+        return pool;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public LabManagerSession getSession() {
+        return session;
+    }
+
+    public LabManagerClient getClient() {
+        return client;
+    }
+
+    /**
+     * @return The latency estimate in milliseconds, or -1 if there is none
+     * yet.
+     */
+    public synchronized double getLatency() {
+        return latency;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized boolean isEjected() {
+        return ejectedUntil != 0;
+    }
+
+    synchronized long getEjectedUntil() {
+        return ejectedUntil;
+    }
+
+    /**
+     * @return Whether the endpoint is in use and can take a call.
+     */
+    synchronized boolean isAvailable() {
+        return ejectedUntil == 0;
+    }
+
+    /**
+     * Claim the endpoint for a probe if it has been out long enough and
+     * no other probe is running.
+     */
+    synchronized boolean tryProbe(long now) {
+        if (ejectedUntil == 0 || probing || now < ejectedUntil)
+            return false;
+        probing = true;
+        return true;
+    }
+
+    synchronized void started() {
+        inFlight++;
+    }
+
+    /**
+     * The server answered, with a result or a SOAP fault.
+     * @param elapsed The time the call took, in milliseconds.
+     * @param read Whether the call was a lookup, whose time counts
+     * towards the latency estimate.
+     * @return Whether this brought the endpoint back into use.
+     */
+    synchronized boolean succeeded(long elapsed, boolean read) {
+        inFlight--;
+        if (read)
+            latency = latency < 0 ? elapsed : latency + ALPHA * (elapsed - latency);
+        failures = 0;
+        if (ejectedUntil == 0)
+            return false;
+        ejectedUntil = 0;
+        ejections = 0;
+        probing = false;
+        return true;
+    }
+
+    /**
+     * The call failed before the server answered.  The time counts
+     * towards the latency estimate, so that an endpoint that times out
+     * is passed over even before it is ejected.
+     * @return Whether this took the endpoint out of use.
+     */
+    synchronized boolean failed(long elapsed, long now) {
+        inFlight--;
+        latency = latency < 0 ? elapsed : latency + ALPHA * (elapsed - latency);
+        failures++;
+        if (probing) {
+            probing = false;
+            ejections++;
+            ejectedUntil = now + Math.min(EJECT_TIME << Math.min(ejections - 1, 16), MAX_EJECT_TIME);
+            return false;
+        }
+        if (ejectedUntil != 0 || failures < EJECT_AFTER)
+            return false;
+        ejections = 1;
+        ejectedUntil = now + EJECT_TIME;
+        return true;
+    }
+
+    /**
+     * The call was cancelled, which tells us nothing about the endpoint.
+     * @param probe Whether the call was the probe claimed by
+     * {@link #tryProbe(long)}, which lets the next call probe instead.
+     */
+    synchronized void cancelled(boolean probe) {
+        inFlight--;
+        if (probe)
+            probing = false;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spreads a cloud's calls over several Lab Manager web servers.
+ *
+ * Each call goes to the endpoint with the lowest moving average of lookup
+ * times, weighted by the calls it already has in flight; an endpoint that
+ * has not answered yet is tried first.  After a few transport failures in
+ * a row an endpoint is ejected.  Once its time is up a single call is sent
+ * to it as a probe, and it is back in use if that succeeds, or out for
+ * twice as long if not.  Failed calls are not moved to another endpoint
+ * here; that is left to {@link LabManagerRetryPolicy}, whose next attempt
+ * is routed afresh.
+ */
+public final class LabManagerEndpointRouter extends AbstractLabManagerClient {
+    private static final Logger LOGGER = Logger.getLogger(LabManagerEndpointRouter.class.getName());
+
+    private final List<LabManagerEndpoint> endpoints;
+    private final LabManagerMetrics metrics;
+
+    public LabManagerEndpointRouter(List<LabManagerEndpoint> endpoints, LabManagerMetrics metrics) {
+        this.endpoints = endpoints;
+        this.metrics = metrics;
+    }
+
+    /**
+     * A call that can be sent through any endpoint's client.
+     */
+    private interface RoutedCall<T> {
+        LabManagerFuture<T> start(LabManagerClient client);
+    }
+
+    public LabManagerFuture<Integer> getConfigurationId(final String configurationName) {
+        return route(true, new RoutedCall<Integer>() {
+            public LabManagerFuture<Integer> start(LabManagerClient client) {
+                return client.getConfigurationId(configurationName);
+            }
+        });
+    }
+
+    public LabManagerFuture<List<LabManagerMachineInfo>> listMachineInfo(final int configurationId) {
+        return route(true, new RoutedCall<List<LabManagerMachineInfo>>() {
+            public LabManagerFuture<List<LabManagerMachineInfo>> start(LabManagerClient client) {
+                return client.listMachineInfo(configurationId);
+            }
+        });
+    }
+
+    public LabManagerFuture<LabManagerMachineInfo> findMachine(final int configurationId, final String name) {
+        return route(true, new RoutedCall<LabManagerMachineInfo>() {
+            public LabManagerFuture<LabManagerMachineInfo> start(LabManagerClient client) {
+                return client.findMachine(configurationId, name);
+            }
+        });
+    }
+
+    public LabManagerFuture<LabManagerMachineInfo> getMachineInfo(final int machineId) {
+        return route(true, new RoutedCall<LabManagerMachineInfo>() {
+            public LabManagerFuture<LabManagerMachineInfo> start(LabManagerClient client) {
+                return client.getMachineInfo(machineId);
+            }
+        });
+    }
+
+    public LabManagerFuture<LabManagerMachineInfo> getMachineInfoByName(final int configurationId, final String name) {
+        return route(true, new RoutedCall<LabManagerMachineInfo>() {
+            public LabManagerFuture<LabManagerMachineInfo> start(LabManagerClient client) {
+                return client.getMachineInfoByName(configurationId, name);
+            }
+        });
+    }
+
+    public LabManagerFuture<Void> machinePerformAction(final int machineId, final int action) {
+        return route(false, new RoutedCall<Void>() {
+            public LabManagerFuture<Void> start(LabManagerClient client) {
+                return client.machinePerformAction(machineId, action);
+            }
+        });
+    }
+
+    /**
+     * @param read Whether the call is a lookup, whose time says something
+     * about the endpoint's speed.
+     */
+    private <T> LabManagerFuture<T> route(final boolean read, RoutedCall<T> call) {
+        LabManagerEndpoint probed = probe();
+        final boolean probe = probed != null;
+        final LabManagerEndpoint endpoint = probe ? probed : choose();
+        endpoint.started();
+        final long start = System.nanoTime();
+        final LabManagerFuture<T> f;
+        try {
+            f = call.start(endpoint.getClient());
+        } catch (RuntimeException e) {
+            endpoint.cancelled(probe);
+            throw e;
+        }
+        f.addListener(new Runnable() {
+            public void run() {
+                long elapsed = (System.nanoTime() - start) / 1000000L;
+                Throwable failure = f.getFailure();
+                if (f.isCancelled()) {
+                    endpoint.cancelled(probe);
+                } else if (failure != null && LabManagerCircuitBreaker.isTransportFailure(failure)) {
+                    if (endpoint.failed(elapsed, System.currentTimeMillis())) {
+                        metrics.increment("endpoint.ejected");
+                        LOGGER.log(Level.WARNING, "Not using Lab Manager at " + endpoint + " for now: " + failure);
+                    }
+                } else if (endpoint.succeeded(elapsed, read)) {
+                    metrics.increment("endpoint.readmitted");
+                    LOGGER.log(Level.INFO, "Lab Manager at " + endpoint + " is answering again");
+                }
+            }
+        });
+        return f;
+    }
+
+    /**
+     * @return An ejected endpoint that is due a probe, claimed for the
+     * next call, or null.
+     */
+    private LabManagerEndpoint probe() {
+        long now = System.currentTimeMillis();
+        for (LabManagerEndpoint e : endpoints) {
+            if (e.tryProbe(now)) {
+                metrics.increment("endpoint.probes");
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pick the endpoint for the next call when none is due a probe: the
+     * quickest one in use, else, when they are all out, the one that is
+     * due back first.
+     */
+    private LabManagerEndpoint choose() {
+        LabManagerEndpoint best = null;
+        double bestScore = 0;
+        for (LabManagerEndpoint e : endpoints) {
+            if (!e.isAvailable())
+                continue;
+            double latency = e.getLatency();
+            /* Endpoints that haven't answered yet come first, shared
+             * out by the calls they already have. */
+            double score = latency < 0 ? -1.0 / (e.getInFlight() + 1) : latency * (e.getInFlight() + 1);
+            if (best == null || score < bestScore) {
+                best = e;
+                bestScore = score;
+            }
+        }
+        if (best != null)
+            return best;
+        for (LabManagerEndpoint e : endpoints) {
+            if (best == null || e.getEjectedUntil() < best.getEjectedUntil())
+                best = e;
+        }
+        return best;
+    }
+
+    public List<LabManagerEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Add each endpoint's latency estimate, calls in flight and whether it
+     * is ejected to a metrics snapshot.
+     */
+    public void addMetrics(Map<String, Long> snapshot) {
+        for (LabManagerEndpoint e : endpoints) {
+            String prefix = "endpoint." + e.getName() + '.';
+            snapshot.put(prefix + "latency", Long.valueOf(Math.round(Math.max(e.getLatency(), 0))));
+            snapshot.put(prefix + "inFlight", Long.valueOf(e.getInFlight()));
+            snapshot.put(prefix + "ejected", Long.valueOf(e.isEjected() ? 1 : 0));
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A pre-rendered SOAP request for one operation.  Everything but the
+ * parameter values, including the authentication header, is encoded to
+ * bytes once; rendering a request only copies those pieces around the
+ * encoded values.
+ */
+public final class LabManagerEnvelopeTemplate {
+    private final String operation;
+    private final String contentType;
+    /* segments[i] goes before the i'th value, the last one after them all. */
+    private final byte[][] segments;
+    private final int fixedLength;
+    /* Where the soap:Header element starts and ends in segments[0]. */
+    private final int headerStart;
+    private final int headerEnd;
+
+    /**
+     * @param operation The operation, e.g. MachinePerformAction.
+     * @param authHeader The rendered AuthenticationHeader element.
+     * @param parameters The names of the operation's parameters, in order.
+     */
+    public LabManagerEnvelopeTemplate(String operation, String authHeader, String... parameters) {
+        this.operation = operation;
+        this.contentType = "application/soap+xml; charset=utf-8; action=\""
+                + LightweightLabManagerClient.ACTION_BASE + operation + "\"";
+
+        String[] text = new String[parameters.length + 1];
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+        sb.append("<soap:Envelope xmlns:soap=\"").append(LightweightLabManagerClient.SOAP12_NAMESPACE).append("\">");
+        int start = utf8(sb.toString()).length;
+        sb.append("<soap:Header>").append(authHeader).append("</soap:Header>");
+        int end = utf8(sb.toString()).length;
+        sb.append("<soap:Body><").append(operation).append(" xmlns=\"").append(LabManagerMachineListReader.NAMESPACE).append("\">");
+        for (int i = 0; i < parameters.length; i++) {
+            if (i > 0)
+                sb.append("</").append(parameters[i - 1]).append('>');
+            sb.append('<').append(parameters[i]).append('>');
+            text[i] = sb.toString();
+            sb.setLength(0);
+        }
+        if (parameters.length > 0)
+            sb.append("</").append(parameters[parameters.length - 1]).append('>');
+        sb.append("</").append(operation).append("></soap:Body></soap:Envelope>");
+        text[parameters.length] = sb.toString();
+
+        segments = new byte[text.length][];
+        int length = 0;
+        for (int i = 0; i < text.length; i++) {
+            segments[i] = utf8(text[i]);
+            length += segments[i].length;
+        }
+        fixedLength = length;
+        headerStart = start;
+        headerEnd = end;
+    }
+
+    /**
+     * Render the AuthenticationHeader element for the given credentials.
+     */
+    public static String authHeader(String username, String password) {
+        return "<AuthenticationHeader xmlns=\"" + LabManagerMachineListReader.NAMESPACE + "\">"
+                + "<username>" + escape(username) + "</username>"
+                + "<password>" + escape(password) + "</password>"
+                + "</AuthenticationHeader>";
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return The Content-Type header, including the SOAP action.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    public byte[] render(int value) {
+        return splice(ascii(value));
+    }
+
+    public byte[] render(int first, int second) {
+        return splice(ascii(first), ascii(second));
+    }
+
+    public byte[] render(int first, String second) {
+        return splice(ascii(first), utf8(escape(second)));
+    }
+
+    public byte[] render(String value) {
+        return splice(utf8(escape(value)));
+    }
+
+    public byte[] render(String first, String second) {
+        return splice(utf8(escape(first)), utf8(escape(second)));
+    }
+
+    /**
+     * @return A request rendered from this template without its
+     * authentication header, so it can be kept without the password.
+     */
+    public byte[] withoutHeader(byte[] request) {
+        byte[] result = new byte[request.length - (headerEnd - headerStart)];
+        System.arraycopy(request, 0, result, 0, headerStart);
+        System.arraycopy(request, headerEnd, result, headerStart, request.length - headerEnd);
+        return result;
+    }
+
+    private byte[] splice(byte[]... values) {
+        if (values.length != segments.length - 1)
+            throw new IllegalArgumentException(operation + " takes " + (segments.length - 1) + " parameters");
+        int length = fixedLength;
+        for (byte[] v : values)
+            length += v.length;
+        byte[] result = new byte[length];
+        int pos = 0;
+        for (int i = 0; i < values.length; i++) {
+            System.arraycopy(segments[i], 0, result, pos, segments[i].length);
+            pos += segments[i].length;
+            System.arraycopy(values[i], 0, result, pos, values[i].length);
+            pos += values[i].length;
+        }
+        byte[] last = segments[values.length];
+        System.arraycopy(last, 0, result, pos, last.length);
+        return result;
+    }
+
+    private static byte[] ascii(int value) {
+        String s = Integer.toString(value);
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) s.charAt(i);
+        return b;
+    }
+
+    static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static String escape(String s) {
+        if (s == null)
+            return "";
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String replacement;
+            switch (c) {
+                case '<': replacement = "&lt;"; break;
+                case '>': replacement = "&gt;"; break;
+                case '&': replacement = "&amp;"; break;
+                case '"': replacement = "&quot;"; break;
+                case '\'': replacement = "&apos;"; break;
+                default: replacement = null;
+            }
+            if (replacement != null && sb == null) {
+                sb = new StringBuilder(s.length() + 16);
+                sb.append(s, 0, i);
+            }
+            if (sb != null) {
+                if (replacement != null)
+                    sb.append(replacement);
+                else
+                    sb.append(c);
+            }
+        }
+        return sb == null ? s : sb.toString();
+    }
+}
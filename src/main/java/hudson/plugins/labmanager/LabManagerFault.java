@@ -0,0 +1,203 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.net.SocketTimeoutException;
+import java.rmi.RemoteException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A failed Lab Manager call, sorted by what went wrong.
+ *
+ * The server's SOAP faults only carry a reason meant for people, so the
+ * kind is worked out from that reason (and the HTTP status, where we have
+ * it).  Transport problems and our own timeouts are sorted too, so that
+ * callers can deal with every failure the same way.  The original
+ * exception is kept as the cause.
+ */
+public class LabManagerFault extends RemoteException {
+    public enum Kind {
+        /* The username or password was not accepted. */
+        AUTHENTICATION(false, true),
+        /* The organization, workspace, configuration or machine does not
+         * exist. */
+        NOT_FOUND(false, true),
+        /* The response was over the size we are willing to read, see
+         * LabManagerResponseLimits. */
+        TOO_LARGE(false, true),
+        /* The request was refused, e.g. an action the machine can't take
+         * in its current state. */
+        REJECTED(false, false),
+        /* The server is too busy, or the object is locked by another
+         * operation; the request was not carried out. */
+        BUSY(true, false),
+        TIMEOUT(true, false),
+        /* We could not reach the server. */
+        UNAVAILABLE(true, false),
+        /* Any other fault. */
+        SERVER(false, false);
+
+        private final boolean retryable;
+        private final boolean lasting;
+
+        Kind(boolean retryable, boolean lasting) {
+            this.retryable = retryable;
+            this.lasting = lasting;
+        }
+
+        /**
+         * @return Whether sending the same request again may succeed.
+         */
+        public boolean isRetryable() {
+            return retryable;
+        }
+
+        /**
+         * @return Whether the same request will keep failing until someone
+         * changes the cloud or the server, so the failure may be reused.
+         */
+        public boolean isLasting() {
+            return lasting;
+        }
+    }
+
+    /* What a "not found" must be about to count as NOT_FOUND. */
+    private static final String[] LOOKED_UP = { "machine", "configuration", "workspace", "organization" };
+
+    private final Kind kind;
+
+    public LabManagerFault(Kind kind, String message) {
+        super(message);
+        this.kind = kind;
+    }
+
+    public LabManagerFault(Kind kind, String message, Throwable cause) {
+        super(message, cause);
+        this.kind = kind;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public boolean isRetryable() {
+        return kind.isRetryable();
+    }
+
+    /**
+     * Build a fault from the reason the server gave.
+     * @param status The HTTP status of the response, or -1 if unknown.
+     */
+    public static LabManagerFault forReason(String reason, int status) {
+        Kind kind = status == 401 || status == 403 ? Kind.AUTHENTICATION : kindOf(reason);
+        return new LabManagerFault(kind, "Lab Manager fault: " + reason);
+    }
+
+    /**
+     * Sort any failure of a Lab Manager call.
+     * @return The failure itself if it is already a fault, otherwise a
+     * fault whose cause it is.
+     */
+    public static LabManagerFault classify(Throwable t) {
+        if (t instanceof LabManagerFault)
+            return (LabManagerFault) t;
+        String message = t.getMessage() != null ? t.getMessage() : t.toString();
+        int depth = 0;
+        for (Throwable c = t; c != null && depth < 10; c = c.getCause(), depth++) {
+            /* Raised while the response was read, and wrapped by the
+             * parser. */
+            if (c instanceof LabManagerFault)
+                return (LabManagerFault) c;
+            if (c instanceof LabManagerTimeoutException || c instanceof SocketTimeoutException
+                    || c instanceof TimeoutException)
+                return new LabManagerFault(Kind.TIMEOUT, message, t);
+            if (c instanceof LabManagerCircuitOpenException)
+                return new LabManagerFault(Kind.UNAVAILABLE, message, t);
+        }
+        if (LabManagerCircuitBreaker.isTransportFailure(t))
+            return new LabManagerFault(Kind.UNAVAILABLE, message, t);
+        /* Axis2 puts the fault reason in the message. */
+        return new LabManagerFault(kindOf(message), message, t);
+    }
+
+    /**
+     * @return Whether the failure is a fault of the given kind.
+     */
+    public static boolean is(Throwable t, Kind kind) {
+        return t instanceof LabManagerFault && ((LabManagerFault) t).getKind() == kind;
+    }
+
+    /**
+     * Pass on the outcome of a call, with any failure sorted.
+     * Cancelling the returned future cancels the call.
+     */
+    public static <V> LabManagerFuture<V> translate(final LabManagerFuture<V> f) {
+        final LabManagerFuture<V> result = new LabManagerFuture<V>();
+        f.addListener(new Runnable() {
+            public void run() {
+                if (f.isCancelled())
+                    result.cancel(false);
+                else if (f.getFailure() != null)
+                    result.setException(classify(f.getFailure()));
+                else
+                    result.set(f.getNow());
+            }
+        });
+        result.addListener(new Runnable() {
+            public void run() {
+                if (result.isCancelled())
+                    f.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * AUTHENTICATION and NOT_FOUND are lasting, and an AUTHENTICATION fault
+     * is reused for every call on the cloud (see LabManagerFaultCache),
+     * so only the server's own wording for them counts; anything vaguer
+     * is left to the kinds that are not reused.
+     */
+    private static Kind kindOf(String reason) {
+        if (reason == null)
+            return Kind.SERVER;
+        String r = reason.toLowerCase();
+        if (r.contains("unable to authenticate") || r.contains("authentication failed")
+                || r.contains("invalid username or password"))
+            return Kind.AUTHENTICATION;
+        if ((r.contains("not found") || r.contains("does not exist") || r.contains("doesn't exist"))
+                && mentionsAny(r, LOOKED_UP))
+            return Kind.NOT_FOUND;
+        if (r.contains("busy") || r.contains("in progress") || r.contains("locked")
+                || r.contains("try again") || r.contains("too many") || r.contains("unavailable"))
+            return Kind.BUSY;
+        if (r.contains("timed out") || r.contains("timeout"))
+            return Kind.TIMEOUT;
+        if (r.contains("not allowed") || r.contains("invalid") || r.contains("cannot")
+                || r.contains("can't") || r.contains("state"))
+            return Kind.REJECTED;
+        return Kind.SERVER;
+    }
+
+    private static boolean mentionsAny(String reason, String[] words) {
+        for (String word : words) {
+            if (reason.contains(word))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers, for a short while, calls that failed in a way that sending
+ * them again won't fix: a login that was refused, or a configuration or
+ * machine that does not exist.  The same call made during that time fails
+ * at once with the same fault, so a queue of launches against a
+ * misconfigured cloud doesn't send the same doomed request for each slave.
+ *
+ * A refused login fails every call of the cloud, not just the one that saw
+ * it.  Saving the cloud builds a new one, and with it an empty cache.
+ */
+public final class LabManagerFaultCache {
+    /* How long a fault is reused, in milliseconds. */
+    private static final long TTL = Long.getLong(LabManagerFaultCache.class.getName() + ".ttl", 30000L);
+
+    /* The key a refused login is kept under. */
+    private static final String AUTHENTICATION = "*";
+
+    private final LabManagerMetrics metrics;
+    private final ConcurrentMap<String, Entry> faults = new ConcurrentHashMap<String, Entry>();
+
+    public LabManagerFaultCache(LabManagerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Make the call unless it, or the cloud's login, failed for good a
+     * moment ago.
+     *
+     * @param key What the call asks about, e.g. "machine|42".  Calls with
+     * the same key share their faults.
+     */
+    public <V> LabManagerFuture<V> execute(final String key, LabManagerCall<V> call) {
+        long now = System.currentTimeMillis();
+        LabManagerFault cached = get(AUTHENTICATION, now);
+        if (cached == null)
+            cached = get(key, now);
+        if (cached != null) {
+            metrics.increment("fault.fastFail");
+            LabManagerFuture<V> f = new LabManagerFuture<V>();
+            f.setException(cached);
+            return f;
+        }
+
+        LabManagerFuture<V> f;
+        try {
+            f = call.start();
+        } catch (RuntimeException e) {
+            f = new LabManagerFuture<V>();
+            f.setException(e);
+        }
+        final LabManagerFuture<V> outcome = f;
+        outcome.addListener(new Runnable() {
+            public void run() {
+                Throwable failure = outcome.getFailure();
+                if (!(failure instanceof LabManagerFault))
+                    return;
+                LabManagerFault fault = (LabManagerFault) failure;
+                metrics.increment("fault." + fault.getKind().name().toLowerCase());
+                if (fault.getKind().isLasting()) {
+                    String k = fault.getKind() == LabManagerFault.Kind.AUTHENTICATION ? AUTHENTICATION : key;
+                    faults.put(k, new Entry(fault, System.currentTimeMillis() + TTL));
+                }
+            }
+        });
+        return outcome;
+    }
+
+    private LabManagerFault get(String key, long now) {
+        Entry e = faults.get(key);
+        if (e == null)
+            return null;
+        if (e.expires <= now) {
+            faults.remove(key, e);
+            return null;
+        }
+        return e.fault;
+    }
+
+    /**
+     * Add the number of faults being reused to a metrics snapshot.
+     */
+    public void addMetrics(Map<String, Long> snapshot) {
+        long now = System.currentTimeMillis();
+        long cached = 0;
+        for (Entry e : faults.values()) {
+            if (e.expires > now)
+                cached++;
+        }
+        snapshot.put("fault.cached", Long.valueOf(cached));
+    }
+
+    private static final class Entry {
+        final LabManagerFault fault;
+        final long expires;
+
+        Entry(LabManagerFault fault, long expires) {
+            this.fault = fault;
+            this.expires = expires;
+        }
+    }
+}
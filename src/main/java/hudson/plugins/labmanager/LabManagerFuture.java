@@ -0,0 +1,235 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The result of an asynchronous Lab Manager SOAP call.  It is completed by
+ * whoever performs the call and can notify listeners once it is done, so
+ * calls can be chained without a thread waiting on each one.
+ *
+ * @param <V> The type of the result.
+ */
+public class LabManagerFuture<V> implements Future<V> {
+    private static final Logger LOGGER = Logger.getLogger(LabManagerFuture.class.getName());
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Runnable> listeners = new ArrayList<Runnable>();
+    private boolean completed;
+    private boolean cancelled;
+    private V value;
+    private Throwable failure;
+
+    /**
+     * @return A future that already holds the given value.
+     */
+    public static <V> LabManagerFuture<V> completed(V value) {
+        LabManagerFuture<V> f = new LabManagerFuture<V>();
+        f.set(value);
+        return f;
+    }
+
+    /**
+     * Complete with a value.
+     * @return false if we were already complete.
+     */
+    public boolean set(V value) {
+        synchronized (this) {
+            if (completed)
+                return false;
+            this.value = value;
+            completed = true;
+        }
+        finish();
+        return true;
+    }
+
+    /**
+     * Complete with a failure.
+     * @return false if we were already complete.
+     */
+    public boolean setException(Throwable failure) {
+        synchronized (this) {
+            if (completed)
+                return false;
+            this.failure = failure;
+            completed = true;
+        }
+        finish();
+        return true;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (completed)
+                return false;
+            cancelled = true;
+            completed = true;
+        }
+        finish();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return completed;
+    }
+
+    /**
+     * Run the listener once we are complete, or right away if we already
+     * are.  Listeners run on the thread that completes us, so they should
+     * not block.
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!completed) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        runListener(listener);
+    }
+
+    /**
+     * Pass our outcome on to another future once we complete.
+     */
+    public void forwardTo(final LabManagerFuture<V> target) {
+        addListener(new Runnable() {
+            public void run() {
+                synchronized (LabManagerFuture.this) {
+                    if (cancelled) {
+                        target.cancel(false);
+                        return;
+                    }
+                }
+                Throwable t = getFailure();
+                if (t != null)
+                    target.setException(t);
+                else
+                    target.set(getNow());
+            }
+        });
+    }
+
+    private void finish() {
+        done.countDown();
+        List<Runnable> toRun;
+        synchronized (this) {
+            toRun = new ArrayList<Runnable>(listeners);
+            listeners.clear();
+        }
+        for (Runnable listener : toRun)
+            runListener(listener);
+    }
+
+    private static void runListener(Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Lab Manager future listener failed", e);
+        }
+    }
+
+    /**
+     * @return Our value if we completed successfully, otherwise null.
+     */
+    public synchronized V getNow() {
+        return value;
+    }
+
+    /**
+     * @return The failure we completed with, if any.
+     */
+    public synchronized Throwable getFailure() {
+        return failure;
+    }
+
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        return report();
+    }
+
+    public V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit))
+            throw new TimeoutException();
+        return report();
+    }
+
+    private synchronized V report() throws ExecutionException {
+        if (cancelled)
+            throw new CancellationException();
+        if (failure != null)
+            throw new ExecutionException(failure);
+        return value;
+    }
+
+    /**
+     * Wait for the result the way a blocking SOAP call would: failures come
+     * back as the {@link RemoteException} (or runtime exception) the call
+     * produced.
+     */
+    public V await() throws RemoteException, InterruptedException {
+        try {
+            return get();
+        } catch (CancellationException e) {
+            throw new RemoteException("Lab Manager call was cancelled", e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Like {@link #await()}, but give up after the given time.  Giving up
+     * does not cancel the call, as other callers may share it.
+     */
+    public V await(long timeout, TimeUnit unit)
+            throws RemoteException, InterruptedException, TimeoutException {
+        try {
+            return get(timeout, unit);
+        } catch (CancellationException e) {
+            throw new RemoteException("Lab Manager call was cancelled", e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static RemoteException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RemoteException)
+            return (RemoteException) cause;
+        if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if (cause instanceof Error)
+            throw (Error) cause;
+        return new RemoteException(cause.getMessage(), cause);
+    }
+}
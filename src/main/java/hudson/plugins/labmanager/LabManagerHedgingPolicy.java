@@ -0,0 +1,145 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Sends a second copy of a lookup that is taking longer than 95% of its
+ * recent predecessors did.  Whichever copy answers first is used and the
+ * other is cancelled.  Only lookups may be hedged, as the server may see
+ * both copies.
+ *
+ * Both copies are expected to go through the concurrency limiter, so a
+ * hedge waits its turn like any other call.
+ */
+public final class LabManagerHedgingPolicy {
+    private static final double PERCENTILE = 0.95;
+
+    private final LabManagerLatencyTracker latencies;
+    private final LabManagerMetrics metrics;
+    private final boolean enabled;
+
+    /**
+     * @param enabled Whether to hedge at all; latencies are tracked either
+     * way.
+     */
+    public LabManagerHedgingPolicy(LabManagerLatencyTracker latencies, LabManagerMetrics metrics,
+                    boolean enabled) {
+        this.latencies = latencies;
+        this.metrics = metrics;
+        this.enabled = enabled;
+    }
+
+    public <V> LabManagerFuture<V> read(String operation, LabManagerCall<V> call) {
+        Race<V> race = new Race<V>(operation, call);
+        race.send(false);
+        long delay = enabled ? latencies.getPercentile(operation, PERCENTILE) : -1;
+        if (delay >= 0)
+            race.hedgeAfter(delay);
+        return race.result;
+    }
+
+    /**
+     * The copies of one lookup.
+     */
+    private final class Race<V> {
+        private final String operation;
+        private final LabManagerCall<V> call;
+        private final LabManagerFuture<V> result = new LabManagerFuture<V>();
+        private final List<LabManagerFuture<V>> copies = new ArrayList<LabManagerFuture<V>>();
+        /* Latencies are timed from the first copy: the loser is cancelled
+         * before it can record, so timing each copy from its own start
+         * would keep only the quick answers and drag the percentile down. */
+        private final long started = System.currentTimeMillis();
+        private int running;
+
+        Race(String operation, LabManagerCall<V> call) {
+            this.operation = operation;
+            this.call = call;
+            /* Once there is an answer the other copy is not needed. */
+            result.addListener(new Runnable() {
+                public void run() {
+                    List<LabManagerFuture<V>> toCancel;
+                    synchronized (Race.this) {
+                        toCancel = new ArrayList<LabManagerFuture<V>>(copies);
+                    }
+                    for (LabManagerFuture<V> copy : toCancel)
+                        copy.cancel(true);
+                }
+            });
+        }
+
+        void hedgeAfter(long delay) {
+            final ScheduledFuture<?> timer = LabManagerScheduler.schedule(new Runnable() {
+                public void run() {
+                    send(true);
+                }
+            }, delay);
+            result.addListener(new Runnable() {
+                public void run() {
+                    timer.cancel(false);
+                }
+            });
+        }
+
+        void send(final boolean hedge) {
+            synchronized (this) {
+                if (result.isDone())
+                    return;
+                running++;
+            }
+            if (hedge)
+                metrics.increment("hedge." + operation + ".sent");
+            LabManagerFuture<V> f;
+            try {
+                f = call.start();
+            } catch (RuntimeException e) {
+                f = new LabManagerFuture<V>();
+                f.setException(e);
+            }
+            final LabManagerFuture<V> copy = f;
+            synchronized (this) {
+                copies.add(copy);
+            }
+            copy.addListener(new Runnable() {
+                public void run() {
+                    if (copy.isCancelled())
+                        return;
+                    Throwable failure = copy.getFailure();
+                    if (failure == null) {
+                        latencies.record(operation, System.currentTimeMillis() - started);
+                        if (result.set(copy.getNow()) && hedge)
+                            metrics.increment("hedge." + operation + ".won");
+                        return;
+                    }
+                    /* Fail only once no copy is left that might answer. */
+                    boolean last;
+                    synchronized (Race.this) {
+                        last = --running == 0;
+                    }
+                    if (last)
+                        result.setException(failure);
+                }
+            });
+            if (result.isDone() && !copy.isDone())
+                copy.cancel(true);
+        }
+    }
+}
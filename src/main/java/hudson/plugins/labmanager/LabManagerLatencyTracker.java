@@ -0,0 +1,93 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the latencies of the last few hundred successful calls of each
+ * operation, so that we can tell what a normal answer time is.
+ */
+public final class LabManagerLatencyTracker {
+    private static final int WINDOW = 256;
+    /* Fewer samples than this say too little to act on. */
+    private static final int MIN_SAMPLES = 20;
+
+    private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+
+    /**
+     * @param latency In milliseconds.
+     */
+    public void record(String operation, long latency) {
+        Window w = windows.get(operation);
+        if (w == null) {
+            Window created = new Window();
+            w = windows.putIfAbsent(operation, created);
+            if (w == null)
+                w = created;
+        }
+        w.add(latency);
+    }
+
+    /**
+     * @param percentile Between 0 and 1, e.g. 0.95.
+     * @return The latency in milliseconds, or -1 if we don't have enough
+     * samples yet.
+     */
+    public long getPercentile(String operation, double percentile) {
+        Window w = windows.get(operation);
+        return w == null ? -1 : w.percentile(percentile);
+    }
+
+    /**
+     * Add each operation's p50 and p95 to a metrics snapshot.
+     */
+    public void addMetrics(Map<String, Long> snapshot) {
+        for (Map.Entry<String, Window> e : windows.entrySet()) {
+            long p50 = e.getValue().percentile(0.5);
+            if (p50 < 0)
+                continue;
+            snapshot.put("latency." + e.getKey() + ".p50", Long.valueOf(p50));
+            snapshot.put("latency." + e.getKey() + ".p95", Long.valueOf(e.getValue().percentile(0.95)));
+        }
+    }
+
+    private static final class Window {
+        private final long[] samples = new long[WINDOW];
+        private int count;
+        private int next;
+
+        synchronized void add(long latency) {
+            samples[next] = latency;
+            next = (next + 1) % WINDOW;
+            if (count < WINDOW)
+                count++;
+        }
+
+        synchronized long percentile(double percentile) {
+            if (count < MIN_SAMPLES)
+                return -1;
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int i = (int) Math.ceil(percentile * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, i))];
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pulls Machine entries out of a listMachines response as it is read,
+ * keeping only id, name and status.  Unlike the generated ADB classes this
+ * never builds the full ArrayOfMachine tree, and a lookup by name stops
+ * reading as soon as the machine is found.
+ */
+public final class LabManagerMachineListReader {
+    static final String NAMESPACE = "http://vmware.com/labmanager";
+    private static final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+
+    private LabManagerMachineListReader() {
+    }
+
+    /**
+     * Read every machine in the response.
+     */
+    public static List<LabManagerMachineInfo> readAll(XMLStreamReader reader)
+            throws XMLStreamException {
+        List<LabManagerMachineInfo> result = new ArrayList<LabManagerMachineInfo>();
+        LabManagerMachineInfo m;
+        while ((m = next(reader)) != null)
+            result.add(m);
+        return result;
+    }
+
+    /**
+     * Read until the machine with the given name is found.
+     * @return The machine, or null if the response does not contain it.
+     */
+    public static LabManagerMachineInfo find(XMLStreamReader reader, String name)
+            throws XMLStreamException {
+        LabManagerMachineInfo m;
+        while ((m = next(reader)) != null) {
+            if (name.equals(m.getName()))
+                return m;
+        }
+        return null;
+    }
+
+    /**
+     * Read a single Machine, such as the GetMachineResult of a getMachine
+     * response.
+     * @param elementName The local name of the element holding the machine.
+     * @return The machine, or null if the element is missing or nil.
+     */
+    public static LabManagerMachineInfo readSingle(XMLStreamReader reader, String elementName)
+            throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT
+                    && elementName.equals(reader.getLocalName())
+                    && NAMESPACE.equals(reader.getNamespaceURI())) {
+                if ("true".equals(reader.getAttributeValue(XSI_NAMESPACE, "nil")))
+                    return null;
+                return readMachine(reader);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Advance to the next non-nil Machine element and read it.
+     * @return The machine, or null at the end of the document.
+     */
+    static LabManagerMachineInfo next(XMLStreamReader reader)
+            throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT
+                    && "Machine".equals(reader.getLocalName())
+                    && NAMESPACE.equals(reader.getNamespaceURI())) {
+                if ("true".equals(reader.getAttributeValue(XSI_NAMESPACE, "nil")))
+                    continue;
+                return readMachine(reader);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read the Machine element the reader is positioned on, leaving the
+     * reader on its end tag.
+     */
+    private static LabManagerMachineInfo readMachine(XMLStreamReader reader)
+            throws XMLStreamException {
+        int id = 0;
+        int status = 0;
+        String name = null;
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (depth == 1) {
+                    String local = reader.getLocalName();
+                    if ("id".equals(local)) {
+                        id = Integer.parseInt(reader.getElementText().trim());
+                        continue;
+                    } else if ("name".equals(local)) {
+                        name = reader.getElementText();
+                        continue;
+                    } else if ("status".equals(local)) {
+                        status = Integer.parseInt(reader.getElementText().trim());
+                        continue;
+                    }
+                }
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return new LabManagerMachineInfo(id, name, status);
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ * Records the SOAP traffic of either client to a local file, so that
+ * production behaviour (payload sizes, call mix, server latencies) can be
+ * replayed offline by the simulator module's LabManagerReplayServer.
+ *
+ * Recording is off unless the system property
+ * hudson.plugins.labmanager.LabManagerRecorder.file names the file to
+ * append to.  Requests are kept without their authentication header, so
+ * the file holds no passwords; it does hold machine and configuration
+ * names.
+ *
+ * The file starts with the magic "LMREC" and a version byte, then holds
+ * one record per call, written with {@link DataOutputStream}:
+ * <pre>
+ * long   when the call started, in milliseconds since the epoch
+ * int    milliseconds until the response headers arrived
+ * int    milliseconds until the response was read, or the call failed
+ * short  HTTP status, or 0 if no response came
+ * UTF    operation
+ * UTF    response Content-Type, or ""
+ * int, bytes  request, deflated
+ * int, bytes  response, deflated
+ * </pre>
+ */
+public final class LabManagerRecorder {
+    private static final Logger LOGGER = Logger.getLogger(LabManagerRecorder.class.getName());
+
+    static final byte[] MAGIC = { 'L', 'M', 'R', 'E', 'C' };
+    static final int VERSION = 1;
+
+    /* The file to record to, or null not to record. */
+    private static final String FILE = System.getProperty(LabManagerRecorder.class.getName() + ".file");
+    private static LabManagerRecorder instance;
+    private static boolean opened;
+
+    private final DataOutputStream out;
+
+    private LabManagerRecorder(File file) throws IOException {
+        boolean empty = !file.exists() || file.length() == 0;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (empty) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.flush();
+        }
+    }
+
+    /**
+     * @return The recorder, or null if recording is off or the file could
+     * not be opened.
+     */
+    static synchronized LabManagerRecorder getInstance() {
+        if (FILE == null)
+            return null;
+        if (!opened) {
+            opened = true;
+            try {
+                instance = new LabManagerRecorder(new File(FILE));
+                LOGGER.log(Level.INFO, "Recording Lab Manager SOAP traffic to " + FILE);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not record Lab Manager SOAP traffic to " + FILE, e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return Whether calls are being recorded, for callers that should
+     * only render a request for the recording if so.
+     */
+    static boolean isRecording() {
+        return getInstance() != null;
+    }
+
+    /**
+     * Start recording a call, if recording is on.
+     * @param request The request as rendered from the template.
+     * @return The call's recording, or null.
+     */
+    static Exchange start(LabManagerEnvelopeTemplate template, byte[] request) {
+        LabManagerRecorder recorder = getInstance();
+        if (recorder == null)
+            return null;
+        return recorder.new Exchange(template.getOperation(), template.withoutHeader(request));
+    }
+
+    /**
+     * Start recording a call, if recording is on.
+     * @param operation The operation, e.g. MachinePerformAction.
+     * @param request The request, without its authentication header.
+     * @return The call's recording, or null.
+     */
+    static Exchange start(String operation, byte[] request) {
+        LabManagerRecorder recorder = getInstance();
+        if (recorder == null)
+            return null;
+        return recorder.new Exchange(operation, request);
+    }
+
+    private synchronized void write(Exchange e) {
+        try {
+            out.writeLong(e.started);
+            out.writeInt(e.headersMillis);
+            out.writeInt(e.totalMillis);
+            out.writeShort(e.status);
+            out.writeUTF(e.operation);
+            out.writeUTF(e.contentType == null ? "" : e.contentType);
+            writeDeflated(e.request, e.request.length);
+            writeDeflated(e.response.toByteArray(), e.response.size());
+            out.flush();
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "Failed to record a Lab Manager call", x);
+        }
+    }
+
+    private void writeDeflated(byte[] data, int length) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(length / 4 + 64);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished())
+                buf.write(chunk, 0, deflater.deflate(chunk));
+            out.writeInt(buf.size());
+            buf.writeTo(out);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * One call being recorded.  Not thread safe; a call is made on one
+     * thread.
+     */
+    final class Exchange {
+        private final String operation;
+        private final byte[] request;
+        private final long started = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private final ByteArrayOutputStream response = new ByteArrayOutputStream(1024);
+        private int headersMillis;
+        private int totalMillis;
+        private int status;
+        private String contentType;
+        private boolean ended;
+
+        private Exchange(String operation, byte[] request) {
+            this.operation = operation;
+            this.request = request;
+        }
+
+        private int elapsed() {
+            return (int) ((System.nanoTime() - startNanos) / 1000000L);
+        }
+
+        /**
+         * The response headers have arrived.
+         */
+        void responded(int status, String contentType) {
+            this.headersMillis = elapsed();
+            this.status = status;
+            this.contentType = contentType;
+        }
+
+        /**
+         * @return A stream that keeps a copy of what is read from the
+         * response.
+         */
+        InputStream capture(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0)
+                        response.write(b);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0)
+                        response.write(b, off, n);
+                    return n;
+                }
+            };
+        }
+
+        /**
+         * Keep a copy of a response that was read in one piece.
+         */
+        void received(byte[] body) {
+            response.write(body, 0, body.length);
+        }
+
+        /**
+         * Read the rest of the response, which our readers may have
+         * stopped short of, so the recording holds all of it.
+         */
+        void drain(InputStream in) throws IOException {
+            byte[] buf = new byte[8192];
+            while (in.read(buf) != -1)
+                continue;
+        }
+
+        /**
+         * The call is over, one way or another; write it out.
+         */
+        void end() {
+            if (ended)
+                return;
+            ended = true;
+            totalMillis = elapsed();
+            write(this);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+/**
+ * Caps the size of the responses we read, so that a configuration with
+ * far more machines than expected fails its lookup instead of filling the
+ * master's heap.
+ *
+ * The limits are checked as the response is read, and reading stops as
+ * soon as one is passed.  A response that announces its length is turned
+ * down before any of it is read.  Passing a limit fails the call with a
+ * {@link LabManagerFault} of kind {@link LabManagerFault.Kind#TOO_LARGE}.
+ */
+public final class LabManagerResponseLimits {
+    /* The most bytes of a response we read. */
+    public static final long MAX_BYTES = Long.getLong(LabManagerResponseLimits.class.getName() + ".maxBytes", 8L * 1024 * 1024);
+    /* The most XML elements in a response we read; each machine in a
+     * listing takes about a dozen. */
+    public static final int MAX_ELEMENTS = Integer.getInteger(LabManagerResponseLimits.class.getName() + ".maxElements", 100000);
+
+    private LabManagerResponseLimits() {
+    }
+
+    /**
+     * Turn down a response whose announced length is over the limit.
+     * @param length The Content-Length of the response, or -1 if unknown.
+     */
+    public static void checkLength(long length) throws LabManagerFault {
+        if (length > MAX_BYTES)
+            throw tooLarge(length + " bytes");
+    }
+
+    /**
+     * @return A stream that fails once more than {@link #MAX_BYTES} have
+     * been read from it.
+     */
+    public static InputStream limit(InputStream in) {
+        return new LimitedInputStream(in);
+    }
+
+    /**
+     * @return A reader that fails once it has passed more than
+     * {@link #MAX_ELEMENTS} elements, or about {@link #MAX_BYTES} of text.
+     * The size of markup is estimated, so the byte limit is only
+     * approximate; it is there for responses we can't count the bytes of.
+     */
+    public static XMLStreamReader limit(XMLStreamReader reader) {
+        return new LimitedStreamReader(reader);
+    }
+
+    /**
+     * Some parsers report a failed read as a parse error of their own and
+     * drop the cause, so ask the stream instead.
+     * @param in A stream returned by {@link #limit(InputStream)}.
+     * @return The fault the stream failed with, or null.
+     */
+    public static LabManagerFault getFault(InputStream in) {
+        return in instanceof LimitedInputStream ? ((LimitedInputStream) in).fault : null;
+    }
+
+    /**
+     * @return Whether the failure, or one of its causes, is a passed limit.
+     */
+    public static boolean isExceeded(Throwable t) {
+        for (int depth = 0; t != null && depth < 10; t = t.getCause(), depth++) {
+            if (LabManagerFault.is(t, LabManagerFault.Kind.TOO_LARGE))
+                return true;
+        }
+        return false;
+    }
+
+    static LabManagerFault tooLarge(String what) {
+        return new LabManagerFault(LabManagerFault.Kind.TOO_LARGE, "Lab Manager response is too large ("
+                + what + "); check that the configuration name is right, or raise the limit with -D"
+                + LabManagerResponseLimits.class.getName() + ".maxBytes or .maxElements");
+    }
+
+    private static final class LimitedInputStream extends FilterInputStream {
+        private long count;
+        private LabManagerFault fault;
+
+        LimitedInputStream(InputStream in) {
+            super(in);
+        }
+
+        private void counted(long n) throws LabManagerFault {
+            if (n > 0) {
+                count += n;
+                if (count > MAX_BYTES) {
+                    fault = tooLarge("over " + MAX_BYTES + " bytes");
+                    throw fault;
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                counted(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            counted(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            counted(skipped);
+            return skipped;
+        }
+    }
+
+    /**
+     * Counts what passes through the reader.  Failures come back as an
+     * {@link XMLStreamException} whose cause is the fault, as that is all
+     * a reader may throw.
+     */
+    private static final class LimitedStreamReader extends StreamReaderDelegate {
+        private int elements;
+        private long size;
+
+        LimitedStreamReader(XMLStreamReader reader) {
+            super(reader);
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            int event = super.next();
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    elements++;
+                    /* The tags and their attributes. */
+                    size += 2 * getLocalName().length() + 5;
+                    for (int i = 0; i < getAttributeCount(); i++)
+                        size += getAttributeLocalName(i).length() + getAttributeValue(i).length() + 4;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    size += getTextLength();
+                    break;
+                default:
+                    break;
+            }
+            check();
+            return event;
+        }
+
+        @Override
+        public int nextTag() throws XMLStreamException {
+            int event;
+            do {
+                event = next();
+            } while (event == XMLStreamConstants.CHARACTERS && isWhiteSpace()
+                    || event == XMLStreamConstants.SPACE
+                    || event == XMLStreamConstants.COMMENT
+                    || event == XMLStreamConstants.PROCESSING_INSTRUCTION);
+            if (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT)
+                throw new XMLStreamException("Expected a start or end tag", getLocation());
+            return event;
+        }
+
+        @Override
+        public String getElementText() throws XMLStreamException {
+            String text = super.getElementText();
+            size += text.length();
+            check();
+            return text;
+        }
+
+        private void check() throws XMLStreamException {
+            LabManagerFault fault = null;
+            if (elements > MAX_ELEMENTS)
+                fault = tooLarge("over " + MAX_ELEMENTS + " elements");
+            else if (size > MAX_BYTES)
+                fault = tooLarge("over " + MAX_BYTES + " bytes");
+            if (fault != null) {
+                XMLStreamException e = new XMLStreamException(fault.getMessage());
+                e.initCause(fault);
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+
+/**
+ * Retries Lab Manager calls that failed because of a transport problem, or
+ * that the server turned away because it was busy.  Other faults, such as
+ * a refused login or an unknown machine, fail straight away.
+ *
+ * Lookups (listMachines, getMachine, getSingleConfigurationByName and so
+ * on) don't change anything, so they are simply sent again.  A
+ * machinePerformAction that may have reached the server is only sent
+ * again after getMachine shows that the machine is not yet in the state
+ * the action leads to; actions whose outcome can't be seen that way
+ * (reset, snapshot, revert) are only retried if the request never got as
+ * far as the server.
+ *
+ * Retries back off exponentially with full jitter, and each operation has
+ * a retry budget: every call adds a fifth of a retry to it, up to a
+ * maximum, and every retry uses one up.  A struggling server therefore
+ * sees at most about 20% more calls.
+ */
+public final class LabManagerRetryPolicy {
+    private static final int MAX_ATTEMPTS = Integer.getInteger(LabManagerRetryPolicy.class.getName() + ".maxAttempts", 3);
+    /* Backoff bounds, in milliseconds. */
+    private static final long BASE_DELAY = Long.getLong(LabManagerRetryPolicy.class.getName() + ".baseDelay", 500L);
+    private static final long MAX_DELAY = Long.getLong(LabManagerRetryPolicy.class.getName() + ".maxDelay", 10000L);
+    private static final double BUDGET_RATIO = 0.2;
+    private static final double BUDGET_MAX = 10;
+
+    /* Machine status and action codes, see LabManagerVirtualMachineLauncher. */
+    private static final int MACHINE_STATUS_OFF = 1;
+    private static final int MACHINE_STATUS_ON = 2;
+    private static final int MACHINE_STATUS_SUSPENDED = 3;
+    private static final int MACHINE_ACTION_ON = 1;
+    private static final int MACHINE_ACTION_OFF = 2;
+    private static final int MACHINE_ACTION_SUSPEND = 3;
+    private static final int MACHINE_ACTION_RESUME = 4;
+    private static final int MACHINE_ACTION_SHUTDOWN = 8;
+
+    private final LabManagerMetrics metrics;
+    private final ConcurrentMap<String, Budget> budgets = new ConcurrentHashMap<String, Budget>();
+    private final Random random = new Random();
+
+    public LabManagerRetryPolicy(LabManagerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Make a call that does not change anything on the server.
+     * @param operation The SOAP operation, e.g. "listMachines".
+     */
+    public <V> LabManagerFuture<V> read(String operation, LabManagerCall<V> call) {
+        LabManagerFuture<V> result = new LabManagerFuture<V>();
+        new Attempt<V>(operation, call, result, 0, -1, null).run();
+        return result;
+    }
+
+    /**
+     * Make a machinePerformAction call.
+     * @param status Looks up the machine, to see whether an action that
+     * failed had in fact been carried out.
+     */
+    public LabManagerFuture<Void> action(int action, LabManagerCall<Void> call,
+                    LabManagerCall<LabManagerMachineInfo> status) {
+        LabManagerFuture<Void> result = new LabManagerFuture<Void>();
+        new Attempt<Void>("machinePerformAction", call, result, 0, expectedStatus(action), status).run();
+        return result;
+    }
+
+    /**
+     * @return The machine status an action ends in, or -1 if that can't
+     * be told from the status alone.
+     */
+    private static int expectedStatus(int action) {
+        switch (action) {
+            case MACHINE_ACTION_ON:
+            case MACHINE_ACTION_RESUME:
+                return MACHINE_STATUS_ON;
+            case MACHINE_ACTION_OFF:
+            case MACHINE_ACTION_SHUTDOWN:
+                return MACHINE_STATUS_OFF;
+            case MACHINE_ACTION_SUSPEND:
+                return MACHINE_STATUS_SUSPENDED;
+            default:
+                return -1;
+        }
+    }
+
+    private final class Attempt<V> implements Runnable {
+        private final String operation;
+        private final LabManagerCall<V> call;
+        private final LabManagerFuture<V> result;
+        private final int attempt;
+        /* For actions only. */
+        private final int expectedStatus;
+        private final LabManagerCall<LabManagerMachineInfo> status;
+
+        Attempt(String operation, LabManagerCall<V> call, LabManagerFuture<V> result,
+                int attempt, int expectedStatus, LabManagerCall<LabManagerMachineInfo> status) {
+            this.operation = operation;
+            this.call = call;
+            this.result = result;
+            this.attempt = attempt;
+            this.expectedStatus = expectedStatus;
+            this.status = status;
+        }
+
+        public void run() {
+            /* Given up on while queued or backing off. */
+            if (result.isDone())
+                return;
+            if (attempt == 0)
+                budget(operation).deposit();
+            final LabManagerFuture<V> f = start(call);
+            cancelWithResult(f);
+            f.addListener(new Runnable() {
+                public void run() {
+                    Throwable failure = f.getFailure();
+                    if (failure == null || f.isCancelled()) {
+                        f.forwardTo(result);
+                        return;
+                    }
+                    retryOrFail(failure);
+                }
+            });
+        }
+
+        private void retryOrFail(Throwable failure) {
+            if (result.isDone())
+                return;
+            boolean action = status != null;
+            /* A busy server turns the request away without acting on it. */
+            boolean busy = LabManagerFault.is(failure, LabManagerFault.Kind.BUSY);
+            boolean notSent = busy || isConnectFailure(failure);
+            if (attempt + 1 >= MAX_ATTEMPTS
+                    || !(busy || LabManagerCircuitBreaker.isTransportFailure(failure))
+                    || (action && !notSent && expectedStatus == -1)) {
+                result.setException(failure);
+                return;
+            }
+            if (!budget(operation).withdraw()) {
+                metrics.increment("retry." + operation + ".budgetExhausted");
+                result.setException(failure);
+                return;
+            }
+            metrics.increment("retry." + operation);
+            final Attempt<V> next = new Attempt<V>(operation, call, result, attempt + 1, expectedStatus, status);
+            Runnable retry = next;
+            if (action && !notSent) {
+                retry = new Runnable() {
+                    public void run() {
+                        next.recheckThenRun();
+                    }
+                };
+            }
+            LabManagerScheduler.schedule(retry, backoff(attempt));
+        }
+
+        /**
+         * Look at the machine first, and only send the action again if it
+         * hasn't already taken effect.
+         */
+        private void recheckThenRun() {
+            if (result.isDone())
+                return;
+            final LabManagerFuture<LabManagerMachineInfo> m = start(status);
+            cancelWithResult(m);
+            m.addListener(new Runnable() {
+                public void run() {
+                    if (result.isDone())
+                        return;
+                    LabManagerMachineInfo vm = m.getNow();
+                    if (m.getFailure() == null && vm != null && vm.getStatus() == expectedStatus) {
+                        metrics.increment("retry." + operation + ".alreadyDone");
+                        result.set(null);
+                        return;
+                    }
+                    Attempt.this.run();
+                }
+            });
+        }
+
+        /**
+         * Cancelling the result cancels the call in flight, so that an
+         * action we have given up on is not carried out late.
+         */
+        private void cancelWithResult(final LabManagerFuture<?> f) {
+            result.addListener(new Runnable() {
+                public void run() {
+                    if (result.isCancelled())
+                        f.cancel(true);
+                }
+            });
+        }
+    }
+
+    private static <V> LabManagerFuture<V> start(LabManagerCall<V> call) {
+        try {
+            return call.start();
+        } catch (RuntimeException e) {
+            LabManagerFuture<V> f = new LabManagerFuture<V>();
+            f.setException(e);
+            return f;
+        }
+    }
+
+    /**
+     * Full jitter: anywhere between 0 and the exponential bound.
+     */
+    private long backoff(int attempt) {
+        long bound = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt, 20));
+        synchronized (random) {
+            return (long) (random.nextDouble() * bound);
+        }
+    }
+
+    /**
+     * A failure to connect means the request was never sent.
+     */
+    private static boolean isConnectFailure(Throwable t) {
+        for (int depth = 0; t != null && depth < 10; t = t.getCause(), depth++) {
+            if (t instanceof ConnectException || t instanceof ConnectTimeoutException
+                    || t instanceof NoRouteToHostException || t instanceof UnknownHostException)
+                return true;
+        }
+        return false;
+    }
+
+    private Budget budget(String operation) {
+        Budget budget = budgets.get(operation);
+        if (budget == null) {
+            Budget created = new Budget();
+            budget = budgets.putIfAbsent(operation, created);
+            if (budget == null)
+                budget = created;
+        }
+        return budget;
+    }
+
+    /**
+     * Add the retries each operation has left to a metrics snapshot.
+     */
+    public void addMetrics(Map<String, Long> snapshot) {
+        for (Map.Entry<String, Budget> e : budgets.entrySet())
+            snapshot.put("retry." + e.getKey() + ".budget", Long.valueOf(e.getValue().available()));
+    }
+
+    private static final class Budget {
+        private double tokens = BUDGET_MAX;
+
+        synchronized void deposit() {
+            tokens = Math.min(BUDGET_MAX, tokens + BUDGET_RATIO);
+        }
+
+        synchronized boolean withdraw() {
+            if (tokens < 1)
+                return false;
+            tokens -= 1;
+            return true;
+        }
+
+        synchronized long available() {
+            return (long) tokens;
+        }
+    }
+}
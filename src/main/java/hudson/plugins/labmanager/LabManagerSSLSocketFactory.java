@@ -0,0 +1,147 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+
+/**
+ * Opens the TLS connections for one cloud.  The SSLContext is built once,
+ * so its client session cache lets later connections to the same host
+ * resume the TLS session instead of doing a full handshake.
+ *
+ * Certificates are checked against the given trust store, or, as the
+ * plugin has always done, not at all when no trust store is set.  Unlike
+ * the old DummyTrustProvider this does not touch the JVM-wide security
+ * providers or properties.
+ */
+public final class LabManagerSSLSocketFactory implements SecureProtocolSocketFactory {
+    private static final int SESSION_CACHE_SIZE = Integer.getInteger(LabManagerSSLSocketFactory.class.getName() + ".sessionCacheSize", 100);
+    /* In seconds. */
+    private static final int SESSION_TIMEOUT = Integer.getInteger(LabManagerSSLSocketFactory.class.getName() + ".sessionTimeout", 3600);
+
+    private final SSLSocketFactory factory;
+
+    private LabManagerSSLSocketFactory(SSLContext context) {
+        SSLSessionContext sessions = context.getClientSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT);
+        }
+        this.factory = context.getSocketFactory();
+    }
+
+    /**
+     * @param trustStorePath A JKS trust store, or null/empty to trust any
+     * certificate.
+     * @param trustStorePassword The trust store's password, may be null.
+     */
+    public static LabManagerSSLSocketFactory create(String trustStorePath, String trustStorePassword)
+            throws GeneralSecurityException, IOException {
+        TrustManager[] trustManagers;
+        if (trustStorePath == null || trustStorePath.trim().length() == 0) {
+            trustManagers = new TrustManager[] { new TrustAllManager() };
+        } else {
+            KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+            InputStream in = new FileInputStream(trustStorePath.trim());
+            try {
+                ks.load(in, trustStorePassword == null ? null : trustStorePassword.toCharArray());
+            } finally {
+                in.close();
+            }
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(ks);
+            trustManagers = tmf.getTrustManagers();
+        }
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers, null);
+        return new LabManagerSSLSocketFactory(context);
+    }
+
+    /**
+     * @return The https protocol, using this factory, for the given
+     * Lab Manager URL.  Hand this to Axis2 as its custom protocol handler
+     * or to commons-httpclient through a HostConfiguration.
+     */
+    public Protocol getProtocol(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return new Protocol("https", this, port);
+    }
+
+    public Socket createSocket(String host, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        return factory.createSocket(host, port, localAddress, localPort);
+    }
+
+    public Socket createSocket(String host, int port, InetAddress localAddress, int localPort,
+                    HttpConnectionParams params) throws IOException, ConnectTimeoutException {
+        int timeout = params == null ? 0 : params.getConnectionTimeout();
+        if (timeout == 0)
+            return createSocket(host, port, localAddress, localPort);
+        /* Connect with a timeout, then layer TLS over the socket using
+         * the host name so that the session can be resumed. */
+        Socket plain = new Socket();
+        try {
+            plain.bind(new InetSocketAddress(localAddress, localPort));
+            plain.connect(new InetSocketAddress(host, port), timeout);
+        } catch (SocketTimeoutException e) {
+            plain.close();
+            throw new ConnectTimeoutException("Connecting to " + host + ":" + port + " timed out");
+        } catch (IOException e) {
+            plain.close();
+            throw e;
+        }
+        return factory.createSocket(plain, host, port, true);
+    }
+
+    public Socket createSocket(String host, int port) throws IOException {
+        return factory.createSocket(host, port);
+    }
+
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+            throws IOException {
+        return factory.createSocket(socket, host, port, autoClose);
+    }
+
+    private static class TrustAllManager implements X509TrustManager {
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
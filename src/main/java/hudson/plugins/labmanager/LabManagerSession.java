@@ -0,0 +1,196 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import org.apache.commons.httpclient.Cookie;
+import org.apache.commons.httpclient.HttpState;
+
+/**
+ * A Lab Manager server session bound to one organization and workspace.
+ *
+ * Lab Manager keeps the current organization and workspace in the ASP.NET
+ * session named by its session cookie, not on the connection, so the
+ * binding belongs to a cookie jar.  Every client that uses the same
+ * organization, workspace and user on a host shares one of these (see
+ * {@link LabManagerConnectionPool#getSession}) and sends its calls with
+ * its cookies, whichever pooled connection they go out on.
+ *
+ * The setCurrentOrganizationByName and setCurrentWorkspaceByName calls are
+ * made before the first call and then only again after the server hands
+ * out a new session cookie, which means it has dropped the old session.
+ * A lookup that came back on a new session is sent again once the session
+ * is bound, since the server answered it without an organization.
+ */
+public final class LabManagerSession {
+    static final String SESSION_COOKIE = "ASP.NET_SessionId";
+
+    private final String organization;
+    private final String workspace;
+    private final HttpState state = new HttpState();
+
+    /* The bind in progress or done, or null if we have to bind again. */
+    private LabManagerFuture<Void> binding;
+    /* The session cookie we bound, null until we know it. */
+    private String boundCookie;
+    /* Counts the session resets, so that a call can tell whether the
+     * session was reset while it was out. */
+    private int generation;
+    private long binds;
+
+    LabManagerSession(String organization, String workspace) {
+        this.organization = organization;
+        this.workspace = workspace;
+    }
+
+    public String getOrganization() {
+        return organization;
+    }
+
+    public String getWorkspace() {
+        return workspace;
+    }
+
+    /**
+     * @return The cookies to send our calls with.
+     */
+    public HttpState getState() {
+        return state;
+    }
+
+    /**
+     * Make a call in this session, binding it first if needed.
+     *
+     * @param binder Sets the current organization and workspace.
+     * @param read Whether the call only reads, in which case it is sent
+     * once more if the session was reset under it.
+     */
+    public <V> LabManagerFuture<V> execute(final LabManagerCall<Void> binder, final boolean read,
+                    final LabManagerCall<V> call) {
+        final LabManagerFuture<V> result = new LabManagerFuture<V>();
+        run(binder, read, call, result);
+        return result;
+    }
+
+    private <V> void run(final LabManagerCall<Void> binder, final boolean again,
+                    final LabManagerCall<V> call, final LabManagerFuture<V> result) {
+        final LabManagerFuture<Void> bound = bind(binder);
+        bound.addListener(new Runnable() {
+            public void run() {
+                if (bound.getFailure() != null) {
+                    result.setException(bound.getFailure());
+                    return;
+                }
+                if (result.isDone())
+                    return;
+                final int startedIn = getGeneration();
+                final LabManagerFuture<V> f;
+                try {
+                    f = call.start();
+                } catch (RuntimeException e) {
+                    result.setException(e);
+                    return;
+                }
+                result.addListener(new Runnable() {
+                    public void run() {
+                        if (result.isCancelled())
+                            f.cancel(true);
+                    }
+                });
+                f.addListener(new Runnable() {
+                    public void run() {
+                        if (wasReset(startedIn) && again && !f.isCancelled())
+                            LabManagerSession.this.run(binder, false, call, result);
+                        else
+                            f.forwardTo(result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return A future that completes once the session is bound.  Callers
+     * that arrive while a bind is in progress share it.
+     */
+    private LabManagerFuture<Void> bind(LabManagerCall<Void> binder) {
+        final LabManagerFuture<Void> f = new LabManagerFuture<Void>();
+        synchronized (this) {
+            if (binding != null)
+                return binding;
+            binding = f;
+            binds++;
+        }
+        f.addListener(new Runnable() {
+            public void run() {
+                synchronized (LabManagerSession.this) {
+                    if (binding != f)
+                        return;
+                    if (f.getFailure() != null || f.isCancelled())
+                        binding = null;
+                    else
+                        boundCookie = getSessionCookie();
+                }
+            }
+        });
+        try {
+            binder.start().forwardTo(f);
+        } catch (RuntimeException e) {
+            f.setException(e);
+        }
+        return f;
+    }
+
+    private synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Check whether the server has started a new session, and if so make
+     * the next call bind again.
+     * @return Whether the session was reset since the given generation.
+     */
+    private synchronized boolean wasReset(int startedIn) {
+        if (boundCookie != null && !boundCookie.equals(getSessionCookie())) {
+            generation++;
+            binding = null;
+            boundCookie = null;
+        }
+        return generation != startedIn;
+    }
+
+    private String getSessionCookie() {
+        for (Cookie c : state.getCookies()) {
+            if (SESSION_COOKIE.equalsIgnoreCase(c.getName()))
+                return c.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * @return How often the session has been bound.
+     */
+    public synchronized long getBinds() {
+        return binds;
+    }
+
+    /**
+     * @return How often the server has reset the session.
+     */
+    public synchronized long getResets() {
+        return generation;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Lets concurrent callers that ask for the same read share one in-flight
+ * SOAP call.  The first caller for a key starts the call; everyone who asks
+ * for that key before it completes gets the same future.  Once the call
+ * completes the next request for the key starts a new one, so results are
+ * never reused after the fact.
+ *
+ * Callers share the result, so they must treat it as read-only and must
+ * not cancel the future.
+ *
+ * @param <V> The type of the shared result.
+ */
+public final class LabManagerSingleFlight<V> {
+    private final ConcurrentMap<String, LabManagerFuture<V>> inFlight = new ConcurrentHashMap<String, LabManagerFuture<V>>();
+    private final LabManagerMetrics metrics;
+    private final String metricName;
+
+    /**
+     * @param metrics Where to count calls that joined an existing one.
+     * @param metricName The counter to use, e.g. "listMachines.coalesced".
+     */
+    public LabManagerSingleFlight(LabManagerMetrics metrics, String metricName) {
+        this.metrics = metrics;
+        this.metricName = metricName;
+    }
+
+    public LabManagerFuture<V> execute(final String key, LabManagerCall<V> call) {
+        final LabManagerFuture<V> shared = new LabManagerFuture<V>();
+        while (true) {
+            LabManagerFuture<V> existing = inFlight.putIfAbsent(key, shared);
+            if (existing == null)
+                break;
+            /* A waiter can be woken before the entry is dropped; a call
+             * that has already completed must not be joined. */
+            if (!existing.isDone()) {
+                metrics.increment(metricName);
+                return existing;
+            }
+            inFlight.remove(key, existing);
+        }
+
+        shared.addListener(new Runnable() {
+            public void run() {
+                inFlight.remove(key, shared);
+            }
+        });
+        try {
+            call.start().forwardTo(shared);
+        } catch (RuntimeException e) {
+            shared.setException(e);
+        }
+        return shared;
+    }
+
+    /**
+     * @return The call in flight for the key, or null if there is none.
+     */
+    public LabManagerFuture<V> peek(String key) {
+        LabManagerFuture<V> existing = inFlight.get(key);
+        if (existing == null || existing.isDone())
+            return null;
+        return existing;
+    }
+
+    /**
+     * @return The number of distinct calls currently in flight.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import java.rmi.RemoteException;
+
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.client.Options;
+import org.apache.axis2.context.ConfigurationContext;
+import org.apache.axis2.context.ConfigurationContextFactory;
+import org.apache.axis2.transport.http.HTTPConstants;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.protocol.Protocol;
+
+import com.vmware.labmanager.LabManager_x0020_SOAP_x0020_interfaceStub;
+import com.vmware.labmanager.LabManager_x0020_SOAP_x0020_interfaceStub.*;
+
+/**
+ * Builds the generated Axis2 stub and the clients that use it.
+ *
+ * This is the only place, along with {@link LabManagerAsyncClient}, that
+ * touches the stub, its ADB classes or the Axis2 runtime.  The rest of the
+ * plugin works through {@link LabManagerClient}, so Jenkins can restore
+ * clouds and slaves without loading any of them; they are loaded when the
+ * first call is made.
+ */
+public final class LabManagerStubFactory {
+    static final String SERVICE_PATH = "/LabManager/SOAP/LabManager.asmx";
+
+    /* Shared by the stubs of a cloud. */
+    private ConfigurationContext context;
+
+    /**
+     * Build a stub for one host.  The stub and the Axis2 context behind it
+     * are expensive, so a cloud does this once per host.
+     *
+     * @param protocol The https protocol for the host, or null.
+     * @param session The session whose cookies the calls are sent with,
+     * or null.
+     * @param timeout The longest, in milliseconds, that any call may take.
+     */
+    public synchronized LabManager_x0020_SOAP_x0020_interfaceStub createStub(String host,
+                    LabManagerConnectionPool pool, Protocol protocol, LabManagerSession session,
+                    long timeout) {
+        try {
+            if (context == null)
+                context = ConfigurationContextFactory.createConfigurationContextFromFileSystem(null, null);
+            LabManager_x0020_SOAP_x0020_interfaceStub stub = new LabManager_x0020_SOAP_x0020_interfaceStub(context, host + SERVICE_PATH);
+            Options options = stub._getServiceClient().getOptions();
+            /* Keep connections to the server open between calls. */
+            options.setProperty(HTTPConstants.REUSE_HTTP_CLIENT, Boolean.TRUE);
+            options.setProperty(HTTPConstants.CACHED_HTTP_CLIENT, pool.getHttpClient());
+            setProtocol(options, protocol);
+            if (session != null)
+                options.setProperty(HTTPConstants.CACHED_HTTP_STATE, session.getState());
+            /* The generated calls share these options, so this is the
+             * longest any of them may take.  Shorter timeouts are applied
+             * as the calls are awaited. */
+            options.setTimeOutInMilliSeconds(timeout);
+            return stub;
+        } catch (AxisFault e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Build a client that sends its calls through a new stub for the host.
+     * @param readTimeout The socket timeout for lookups, in milliseconds.
+     * @param timeout The longest, in milliseconds, that any call may take.
+     */
+    public LabManagerClient createClient(String host, LabManagerConnectionPool pool, Protocol protocol,
+                    LabManagerSession session, String username, String password,
+                    long readTimeout, long timeout) {
+        return new LabManagerAsyncClient(createStub(host, pool, protocol, session, timeout),
+                authHeader(username, password), readTimeout, session);
+    }
+
+    public static AuthenticationHeaderE authHeader(String username, String password) {
+        AuthenticationHeader ah = new AuthenticationHeader();
+        ah.setUsername(username);
+        ah.setPassword(password);
+        AuthenticationHeaderE ahe = new AuthenticationHeaderE();
+        ahe.setAuthenticationHeader(ah);
+        return ahe;
+    }
+
+    private static void setProtocol(Options options, Protocol protocol) {
+        if (protocol != null)
+            options.setProperty(HTTPConstants.CUSTOM_PROTOCOL_HANDLER, protocol);
+    }
+
+    /**
+     * Log in to one host with a stub of its own, bind the organization and
+     * workspace and look up the configuration.
+     * @return Whether the configuration was found.
+     * @throws LabManagerFault If there is no such configuration.
+     */
+    public static boolean testConnection(String host, Protocol protocol, String organization,
+                    String workspace, String configuration, String username, String password)
+            throws RemoteException {
+        LabManager_x0020_SOAP_x0020_interfaceStub stub = new LabManager_x0020_SOAP_x0020_interfaceStub(host + SERVICE_PATH);
+        Options options = stub._getServiceClient().getOptions();
+        setProtocol(options, protocol);
+        AuthenticationHeaderE ahe = authHeader(username, password);
+
+        /* Bind the organization and workspace the way the cloud will, in
+         * a session of our own. */
+        options.setProperty(HTTPConstants.CACHED_HTTP_STATE, new HttpState());
+        SetCurrentOrganizationByName org = new SetCurrentOrganizationByName();
+        org.setOrgName(organization);
+        stub.setCurrentOrganizationByName(org, ahe);
+        SetCurrentWorkspaceByName ws = new SetCurrentWorkspaceByName();
+        ws.setOrgName(organization);
+        ws.setWorkspaceName(workspace);
+        stub.setCurrentWorkspaceByName(ws, ahe);
+
+        GetSingleConfigurationByName request = new GetSingleConfigurationByName();
+        request.setName(configuration);
+        GetSingleConfigurationByNameResponse resp = stub.getSingleConfigurationByName(request, ahe);
+        Configuration found = resp.getGetSingleConfigurationByNameResult();
+        if (found == null)
+            throw new LabManagerFault(LabManagerFault.Kind.NOT_FOUND, "Configuration " + configuration + " not found");
+        return configuration.equals(found.getName());
+    }
+}
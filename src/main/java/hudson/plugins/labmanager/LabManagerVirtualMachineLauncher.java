@@ -38,9 +38,6 @@ import java.util.logging.Logger;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
-import com.vmware.labmanager.*;
-import com.vmware.labmanager.LabManager_x0020_SOAP_x0020_interfaceStub.*;
-
 /**
  * {@link ComputerLauncher} for Lab Manager that waits for the Virtual Machine
  * to really come up before proceeding to the real user-specified
@@ -135,40 +132,29 @@ public class LabManagerVirtualMachineLauncher extends ComputerLauncher {
      * Machine object.  We know that the machine name is unique to the
      * configuration.
      */
-    private Machine getMachine(LabManager labmanager,
-                    LabManager_x0020_SOAP_x0020_interfaceStub lmStub,
-                    AuthenticationHeaderE lmAuth)
-            throws java.rmi.RemoteException {
-        Machine vm = null;
-        GetSingleConfigurationByName gscbnReq = new GetSingleConfigurationByName();
-        gscbnReq.setName(labmanager.getLmConfiguration());
-        GetSingleConfigurationByNameResponse gscbnResp = lmStub.getSingleConfigurationByName(gscbnReq, lmAuth);
-        ListMachines lmReq = new ListMachines();
-        lmReq.setConfigurationId(gscbnResp.getGetSingleConfigurationByNameResult().getId());
-        ListMachinesResponse lmResp = lmStub.listMachines(lmReq, lmAuth);
-
-        ArrayOfMachine aom = lmResp.getListMachinesResult();
-        for (Machine mach : aom.getMachine()) {
-            if (mach.getName().equals(this.vmName))
-                vm = mach;
-        }
-
-        return vm;
+    private LabManagerMachineInfo getMachine(LabManager labmanager,
+                    LabManagerDeadline deadline)
+            throws java.rmi.RemoteException, InterruptedException {
+        return deadline.await(labmanager.findMachine(this.vmName, deadline.getPriority()),
+                "listMachines", labmanager.getReadTimeout() * 1000L);
     }
 
     /**
      * Perform the specified action on the specified machine via SOAP.
      */
-    private static void performAction(LabManager labmanager,
-                    LabManager_x0020_SOAP_x0020_interfaceStub lmStub,
-                    AuthenticationHeaderE lmAuth, Machine vm, int action) 
-            throws java.rmi.RemoteException {
-        MachinePerformAction mpaReq = new MachinePerformAction();
-        mpaReq.setAction(action);
-        mpaReq.setMachineId(vm.getId());
+    private static void performAction(LabManager labmanager, LabManagerMachineInfo vm,
+                    int action, LabManagerDeadline deadline)
+            throws java.rmi.RemoteException, InterruptedException {
         /* We can't actually do anything here, problems come
          * as an exception I believe. */
-        lmStub.machinePerformAction(mpaReq, lmAuth);
+        LabManagerFuture<Void> f = labmanager.getClient(deadline.getPriority()).machinePerformAction(vm.getId(), action);
+        try {
+            deadline.await(f, "machinePerformAction", labmanager.getActionTimeout() * 1000L);
+        } finally {
+            /* If we gave up, don't let an action that is still waiting
+             * for its turn go out later. */
+            f.cancel(true);
+        }
     }
 
     /**
@@ -187,38 +173,41 @@ public class LabManagerVirtualMachineLauncher extends ComputerLauncher {
          * right now so we need to call our getMachine.
          */
         LabManager labmanager = findOurLmInstance();
-        LabManager_x0020_SOAP_x0020_interfaceStub lmStub = labmanager.getLmStub();
-        AuthenticationHeaderE lmAuth = labmanager.getLmAuth();
+        LabManagerDeadline deadline = labmanager.newLaunchDeadline();
         int machineAction = 0;
-        Machine vm = getMachine(labmanager, lmStub, lmAuth);
 
-        /* Determine the current state of the VM. */
-        switch (vm.getStatus()) {
-            case MACHINE_STATUS_OFF:
-                machineAction = MACHINE_ACTION_ON;
-                break;
-            case MACHINE_STATUS_SUSPENDED:
-                machineAction = MACHINE_ACTION_RESUME;
-                break;
-            case MACHINE_STATUS_ON:
-                /* Nothing to do */
-                break;
-            case MACHINE_STATUS_STUCK:
-            case MACHINE_STATUS_INVALID:
-                LOGGER.log(Level.SEVERE, "Problem with the machine status!");
-                throw new IOException("Problem with the machine status");
-        }
+        try {
+            LabManagerMachineInfo vm = getMachine(labmanager, deadline);
 
-        /* Perform the action, if needed.  This will be sleeping until
-         * it returns from the server. */
-        if (machineAction != 0)
-            performAction(labmanager, lmStub, lmAuth, vm, machineAction);
+            /* Determine the current state of the VM. */
+            switch (vm.getStatus()) {
+                case MACHINE_STATUS_OFF:
+                    machineAction = MACHINE_ACTION_ON;
+                    break;
+                case MACHINE_STATUS_SUSPENDED:
+                    machineAction = MACHINE_ACTION_RESUME;
+                    break;
+                case MACHINE_STATUS_ON:
+                    /* Nothing to do */
+                    break;
+                case MACHINE_STATUS_STUCK:
+                case MACHINE_STATUS_INVALID:
+                    LOGGER.log(Level.SEVERE, "Problem with the machine status!");
+                    throw new IOException("Problem with the machine status");
+            }
+
+            /* Perform the action, if needed.  This will be sleeping until
+             * it returns from the server, or until we run out of time. */
+            if (machineAction != 0)
+                performAction(labmanager, vm, machineAction, deadline);
 
-        try {
             /* At this point we have told Lab Manager to get the VM going.
              * Now we wait our launch delay amount before trying to connect. */
             Thread.sleep(launchDelay * 1000);
             delegate.launch(slaveComputer, taskListener);
+        } catch (LabManagerTimeoutException e) {
+            taskListener.error(e.getMessage());
+            throw e;
         } finally {
             /* If the rest of the launcher fails, we free up a space. */
             if (slaveComputer.getChannel() == null)
@@ -238,12 +227,10 @@ public class LabManagerVirtualMachineLauncher extends ComputerLauncher {
 
         LabManager labmanager = findOurLmInstance();
         labmanager.markOneSlaveOffline(slaveComputer.getDisplayName());
-        LabManager_x0020_SOAP_x0020_interfaceStub lmStub = labmanager.getLmStub();
-        AuthenticationHeaderE lmAuth = labmanager.getLmAuth();
 
+        LabManagerDeadline deadline = labmanager.newTeardownDeadline();
         try {
-            int machineAction = 0;
-            Machine vm = getMachine(labmanager, lmStub, lmAuth);
+            LabManagerMachineInfo vm = getMachine(labmanager, deadline);
 
             /* Determine the current state of the VM. */
             switch (vm.getStatus()) {
@@ -260,14 +247,12 @@ public class LabManagerVirtualMachineLauncher extends ComputerLauncher {
                      */
                     switch (idleAction) {
                         case MACHINE_ACTION_REVERT:
-                            performAction(labmanager, lmStub, lmAuth, vm,
-                                            MACHINE_ACTION_OFF);
+                            performAction(labmanager, vm, MACHINE_ACTION_OFF, deadline);
                             taskListener.getLogger().println("Waiting 60 seconds for shutdown to complete.");
-                            Thread.sleep(60000);
+                            deadline.sleep(60000);
                         case MACHINE_ACTION_SUSPEND:
                         case MACHINE_ACTION_SHUTDOWN:
-                            performAction(labmanager, lmStub, lmAuth, vm,
-                                            idleAction);
+                            performAction(labmanager, vm, idleAction, deadline);
                             break;
                     }
                     break;
@@ -42,6 +42,8 @@ import hudson.util.FormValidation;
 import java.util.List;
 import java.util.ArrayList;
 import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
@@ -52,6 +54,8 @@ import org.kohsuke.stapler.QueryParameter;
  * @author Tom Rini <tom_rini@mentor.com>
  */
 public class LabManagerVirtualMachineSlave extends Slave {
+    private static final Logger LOGGER = Logger.getLogger(LabManagerVirtualMachineSlave.class.getName());
+
     private final String lmDescription;
     private final String vmName;
     private final String idleOption;
@@ -164,7 +168,12 @@ public class LabManagerVirtualMachineSlave extends Slave {
                         break;
                     }
                 }
-                virtualMachinesList.addAll(hypervisor.getLabManagerVirtualMachines());
+                try {
+                    virtualMachinesList.addAll(hypervisor.getLabManagerVirtualMachines());
+                } catch (LabManagerFault e) {
+                    LOGGER.log(Level.WARNING, "Could not list the machines of " + lmDescription
+                            + " (" + e.getKind() + ")", e);
+                }
             }
             return virtualMachinesList;
         }
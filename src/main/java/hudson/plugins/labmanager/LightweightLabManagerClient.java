@@ -0,0 +1,343 @@
+/**
+ *  Copyright (C) 2010-2011 Mentor Graphics Corporation
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hudson.plugins.labmanager;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.protocol.Protocol;
+
+/**
+ * A small SOAP client for the handful of Lab Manager operations the plugin
+ * uses.  It writes the request envelopes by hand, posts them over the
+ * pooled commons-httpclient connections and reads the responses with StAX,
+ * so it never loads the generated Axis2 stub or the Axis2 runtime.
+ */
+public final class LightweightLabManagerClient extends AbstractLabManagerClient {
+    static final String SOAP12_NAMESPACE = "http://www.w3.org/2003/05/soap-envelope";
+    private static final String SOAP11_NAMESPACE = "http://schemas.xmlsoap.org/soap/envelope/";
+    static final String ACTION_BASE = "http://vmware.com/labmanager/";
+
+    /* The calls block on the socket, so they run here rather than on the
+     * caller's thread. */
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new DaemonThreadFactory());
+    private static final XMLInputFactory XML_INPUT = XMLInputFactory.newInstance();
+    private static final LabManagerResponseReader<Void> NO_RESULT = new LabManagerResponseReader<Void>() {
+        public Void read(XMLStreamReader reader) {
+            return null;
+        }
+    };
+
+    private final String endpoint;
+    private final HttpClient httpClient;
+    /* Set when the cloud has its own https protocol, in which case the
+     * requests are sent to the path of the endpoint on this host. */
+    private final HostConfiguration hostConfiguration;
+    /* Socket timeouts in milliseconds. */
+    private final long readTimeout;
+    private final long actionTimeout;
+    /* The session our calls are made in, or null when the cloud has no
+     * organization to bind. */
+    private final LabManagerSession session;
+
+    /* Rendered once, so each call only has to splice in its parameters. */
+    private final LabManagerEnvelopeTemplate getSingleConfigurationByName;
+    private final LabManagerEnvelopeTemplate listMachines;
+    private final LabManagerEnvelopeTemplate getMachine;
+    private final LabManagerEnvelopeTemplate getMachineByName;
+    private final LabManagerEnvelopeTemplate machinePerformAction;
+    private final LabManagerEnvelopeTemplate setCurrentOrganizationByName;
+    private final LabManagerEnvelopeTemplate setCurrentWorkspaceByName;
+
+    /**
+     * @param endpoint The URL of LabManager.asmx.
+     * @param pool The connection pool for the Lab Manager host.
+     * @param protocol The protocol to reach the host with, or null for the
+     * commons-httpclient default.
+     * @param readTimeout The socket timeout for lookups, in milliseconds.
+     * @param actionTimeout The socket timeout for machinePerformAction.
+     * @param session The session to bind to the cloud's organization and
+     * workspace, or null to use the user's defaults.
+     */
+    public LightweightLabManagerClient(String endpoint, LabManagerConnectionPool pool,
+                    Protocol protocol, String username, String password,
+                    long readTimeout, long actionTimeout, LabManagerSession session)
+            throws MalformedURLException {
+        this.httpClient = pool.getHttpClient();
+        this.readTimeout = readTimeout;
+        this.actionTimeout = actionTimeout;
+        this.session = session;
+        if (protocol == null) {
+            this.endpoint = endpoint;
+            this.hostConfiguration = null;
+        } else {
+            URL url = new URL(endpoint);
+            this.endpoint = url.getFile();
+            this.hostConfiguration = new HostConfiguration();
+            this.hostConfiguration.setHost(url.getHost(),
+                    url.getPort() == -1 ? url.getDefaultPort() : url.getPort(), protocol);
+        }
+        String authHeader = LabManagerEnvelopeTemplate.authHeader(username, password);
+        getSingleConfigurationByName = new LabManagerEnvelopeTemplate("GetSingleConfigurationByName", authHeader, "name");
+        listMachines = new LabManagerEnvelopeTemplate("ListMachines", authHeader, "configurationId");
+        getMachine = new LabManagerEnvelopeTemplate("GetMachine", authHeader, "machineId");
+        getMachineByName = new LabManagerEnvelopeTemplate("GetMachineByName", authHeader, "configurationId", "name");
+        machinePerformAction = new LabManagerEnvelopeTemplate("MachinePerformAction", authHeader, "machineId", "action");
+        setCurrentOrganizationByName = new LabManagerEnvelopeTemplate("SetCurrentOrganizationByName", authHeader, "orgName");
+        setCurrentWorkspaceByName = new LabManagerEnvelopeTemplate("SetCurrentWorkspaceByName", authHeader, "orgName", "workspaceName");
+    }
+
+    public LabManagerFuture<Integer> getConfigurationId(String configurationName) {
+        return call(getSingleConfigurationByName, getSingleConfigurationByName.render(configurationName), readTimeout,
+                new LabManagerResponseReader<Integer>() {
+            public Integer read(XMLStreamReader reader) throws XMLStreamException {
+                return readConfigurationId(reader);
+            }
+        });
+    }
+
+    public LabManagerFuture<List<LabManagerMachineInfo>> listMachineInfo(int configurationId) {
+        return call(listMachines, listMachines.render(configurationId), readTimeout,
+                new LabManagerResponseReader<List<LabManagerMachineInfo>>() {
+            public List<LabManagerMachineInfo> read(XMLStreamReader reader) throws XMLStreamException {
+                return LabManagerMachineListReader.readAll(reader);
+            }
+        });
+    }
+
+    public LabManagerFuture<LabManagerMachineInfo> findMachine(int configurationId, final String name) {
+        return call(listMachines, listMachines.render(configurationId), readTimeout,
+                new LabManagerResponseReader<LabManagerMachineInfo>() {
+            public LabManagerMachineInfo read(XMLStreamReader reader) throws XMLStreamException {
+                return LabManagerMachineListReader.find(reader, name);
+            }
+        });
+    }
+
+    public LabManagerFuture<LabManagerMachineInfo> getMachineInfo(int machineId) {
+        return call(getMachine, getMachine.render(machineId), readTimeout,
+                new LabManagerResponseReader<LabManagerMachineInfo>() {
+            public LabManagerMachineInfo read(XMLStreamReader reader) throws XMLStreamException {
+                return LabManagerMachineListReader.readSingle(reader, "GetMachineResult");
+            }
+        });
+    }
+
+    public LabManagerFuture<LabManagerMachineInfo> getMachineInfoByName(int configurationId, String name) {
+        return call(getMachineByName, getMachineByName.render(configurationId, name), readTimeout,
+                new LabManagerResponseReader<LabManagerMachineInfo>() {
+            public LabManagerMachineInfo read(XMLStreamReader reader) throws XMLStreamException {
+                return LabManagerMachineListReader.readSingle(reader, "GetMachineByNameResult");
+            }
+        });
+    }
+
+    public LabManagerFuture<Void> machinePerformAction(int machineId, int action) {
+        return call(machinePerformAction, machinePerformAction.render(machineId, action), actionTimeout, false,
+                NO_RESULT);
+    }
+
+    /**
+     * Make a call in our session, binding it first if needed.
+     * @param read Whether the call only looks something up.
+     */
+    private <T> LabManagerFuture<T> call(final LabManagerEnvelopeTemplate template, final byte[] request,
+                    final long timeout, boolean read, final LabManagerResponseReader<T> responseReader) {
+        if (session == null)
+            return call(template, request, timeout, responseReader);
+        return session.execute(binder, read, new LabManagerCall<T>() {
+            public LabManagerFuture<T> start() {
+                return call(template, request, timeout, responseReader);
+            }
+        });
+    }
+
+    /* Sets the current organization, then the current workspace. */
+    private final LabManagerCall<Void> binder = new LabManagerCall<Void>() {
+        public LabManagerFuture<Void> start() {
+            final String organization = session.getOrganization();
+            final String workspace = session.getWorkspace();
+            final LabManagerFuture<Void> f = new LabManagerFuture<Void>();
+            final LabManagerFuture<Void> org = call(setCurrentOrganizationByName,
+                    setCurrentOrganizationByName.render(organization), readTimeout, NO_RESULT);
+            org.addListener(new Runnable() {
+                public void run() {
+                    if (org.getFailure() != null) {
+                        f.setException(org.getFailure());
+                        return;
+                    }
+                    call(setCurrentWorkspaceByName, setCurrentWorkspaceByName.render(organization, workspace),
+                            readTimeout, NO_RESULT).forwardTo(f);
+                }
+            });
+            return f;
+        }
+    };
+
+    private <T> LabManagerFuture<T> call(final LabManagerEnvelopeTemplate template, final byte[] request,
+                    final long timeout, final LabManagerResponseReader<T> responseReader) {
+        final LabManagerFuture<T> f = new LabManagerFuture<T>();
+        EXECUTOR.execute(new Runnable() {
+            public void run() {
+                if (f.isDone())
+                    return;
+                try {
+                    f.set(invoke(template, request, timeout, responseReader, f));
+                } catch (Throwable t) {
+                    f.setException(t);
+                }
+            }
+        });
+        return f;
+    }
+
+    /**
+     * Post one request and read the response.  Faults come back as a
+     * {@link LabManagerFault} carrying the server's reason.  The response
+     * is read within {@link LabManagerResponseLimits}.
+     *
+     * @param owner The future the result is for; cancelling it aborts the
+     * request.
+     */
+    <T> T invoke(LabManagerEnvelopeTemplate template, byte[] request, long timeout,
+                    LabManagerResponseReader<T> responseReader, final LabManagerFuture<?> owner)
+            throws IOException, XMLStreamException {
+        final PostMethod post = new PostMethod(endpoint);
+        owner.addListener(new Runnable() {
+            public void run() {
+                if (owner.isCancelled())
+                    post.abort();
+            }
+        });
+        LabManagerRecorder.Exchange recording = LabManagerRecorder.start(template, request);
+        InputStream in = null;
+        try {
+            post.setRequestEntity(new ByteArrayRequestEntity(request, template.getContentType()));
+            post.getParams().setSoTimeout((int) timeout);
+            /* Without a host configuration the request goes to the
+             * host in its URL; without a session it uses the client's
+             * own cookies. */
+            int status = httpClient.executeMethod(hostConfiguration, post,
+                    session == null ? null : session.getState());
+            if (recording != null) {
+                Header contentType = post.getResponseHeader("Content-Type");
+                recording.responded(status, contentType == null ? null : contentType.getValue());
+            }
+            in = post.getResponseBodyAsStream();
+            if (in == null)
+                throw LabManagerFault.forReason("empty response (HTTP " + status + ")", status);
+            LabManagerResponseLimits.checkLength(post.getResponseContentLength());
+            if (recording != null)
+                in = recording.capture(in);
+            in = LabManagerResponseLimits.limit(in);
+            XMLStreamReader reader = LabManagerResponseLimits.limit(XML_INPUT.createXMLStreamReader(in));
+            try {
+                if (status != 200) {
+                    String reason = readFault(reader, status);
+                    if (recording != null)
+                        recording.drain(in);
+                    throw LabManagerFault.forReason(reason, status);
+                }
+                T result = responseReader.read(reader);
+                if (recording != null)
+                    recording.drain(in);
+                return result;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            abortIfTooLarge(post, e);
+            throw e;
+        } catch (XMLStreamException e) {
+            LabManagerFault fault = LabManagerResponseLimits.getFault(in);
+            if (fault != null) {
+                post.abort();
+                throw fault;
+            }
+            abortIfTooLarge(post, e);
+            throw e;
+        } finally {
+            if (recording != null)
+                recording.end();
+            /* Hands the connection back to the pool. */
+            post.releaseConnection();
+        }
+    }
+
+    /**
+     * Releasing the connection would read the rest of an oversized
+     * response to keep the connection open; drop the connection instead.
+     */
+    private static void abortIfTooLarge(PostMethod post, Throwable t) {
+        if (LabManagerResponseLimits.isExceeded(t))
+            post.abort();
+    }
+
+    /**
+     * Read the id out of a getSingleConfigurationByName response.
+     * @return The id, or null if no configuration was returned.
+     */
+    private static Integer readConfigurationId(XMLStreamReader reader)
+            throws XMLStreamException {
+        boolean inResult = false;
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                continue;
+            String local = reader.getLocalName();
+            if ("GetSingleConfigurationByNameResult".equals(local))
+                inResult = true;
+            else if (inResult && "id".equals(local))
+                return Integer.valueOf(reader.getElementText().trim());
+        }
+        return null;
+    }
+
+    /**
+     * Pull the reason out of a SOAP 1.2 (or 1.1) fault.
+     */
+    private static String readFault(XMLStreamReader reader, int status)
+            throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                continue;
+            String ns = reader.getNamespaceURI();
+            String local = reader.getLocalName();
+            if (SOAP12_NAMESPACE.equals(ns) && "Text".equals(local))
+                return reader.getElementText();
+            if ("faultstring".equals(local) && (ns == null || ns.length() == 0 || SOAP11_NAMESPACE.equals(ns)))
+                return reader.getElementText();
+        }
+        return "HTTP " + status;
+    }
+}
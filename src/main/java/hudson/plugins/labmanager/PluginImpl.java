@@ -28,7 +28,9 @@ import hudson.slaves.Cloud;
 import hudson.util.ListBoxModel;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -72,7 +74,12 @@ public class PluginImpl extends Plugin {
                 LabManager labmanager = (LabManager) cloud;
                 if (value != null &&
                         value.equals(labmanager.getLmDescription())) {
-                    virtualMachines = labmanager.getLabManagerVirtualMachines();
+                    try {
+                        virtualMachines = labmanager.getLabManagerVirtualMachines();
+                    } catch (LabManagerFault e) {
+                        LOGGER.log(Level.WARNING, "Could not list the machines of " + value
+                                + " (" + e.getKind() + ")", e);
+                    }
                     break;
                 }
             }
@@ -81,8 +88,33 @@ public class PluginImpl extends Plugin {
             for (LabManagerVirtualMachine vm : virtualMachines) {
                 m.add(new ListBoxModel.Option(vm.getName(), vm.getName()));
             }
-            m.get(0).selected = true;
+            if (!m.isEmpty())
+                m.get(0).selected = true;
         }
         m.writeTo(req, rsp);
     }
+
+    /**
+     * Write out the counters of the Lab Manager instance named by value as
+     * plain text, one "name value" pair per line.
+     */
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp,
+            @QueryParameter("value") String value)
+            throws IOException, ServletException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        rsp.setContentType("text/plain;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        for (Cloud cloud : Hudson.getInstance().clouds) {
+            if (cloud instanceof LabManager) {
+                LabManager labmanager = (LabManager) cloud;
+                if (value != null &&
+                        value.equals(labmanager.getLmDescription())) {
+                    for (Map.Entry<String, Long> e : labmanager.getMetricsSnapshot().entrySet())
+                        w.println(e.getKey() + " " + e.getValue());
+                    break;
+                }
+            }
+        }
+        w.flush();
+    }
 }